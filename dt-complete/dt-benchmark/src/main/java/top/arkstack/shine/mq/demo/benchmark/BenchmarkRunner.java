@@ -0,0 +1,57 @@
+package top.arkstack.shine.mq.demo.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.openjdk.jmh.annotations.Mode.SampleTime;
+import static org.openjdk.jmh.annotations.Mode.Throughput;
+
+/**
+ * 依次以 1/4/16/64 个线程运行基准测试，报告吞吐量(ops/us)、分配速率(gc.alloc.rate)和延迟分位数(p0.99/p0.999/p1.0)，
+ * 每个线程数的结果写入 jmh-result-{threads}.json
+ * <p>
+ * 修改ID生成器时，在修改前后各运行一次并附上结果：
+ * <pre>
+ * cd dt-complete/dt-producer && mvn install
+ * cd ../dt-benchmark && mvn package
+ * java -jar target/benchmarks.jar [benchmark regex] [laneBits]
+ * </pre>
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public class BenchmarkRunner {
+
+    private static final int[] THREADS = {1, 4, 16, 64};
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : SnowflakeIdGeneratorBenchmark.class.getSimpleName();
+        String laneBits = args.length > 1 ? args[1] : "0";
+        for (int threads : THREADS) {
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .param("laneBits", laneBits)
+                    .threads(threads)
+                    .mode(Throughput)
+                    .mode(SampleTime)
+                    .timeUnit(TimeUnit.MICROSECONDS)
+                    .warmupIterations(3)
+                    .warmupTime(TimeValue.seconds(1))
+                    .measurementIterations(5)
+                    .measurementTime(TimeValue.seconds(2))
+                    .forks(1)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("jmh-result-" + threads + ".json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package top.arkstack.shine.mq.demo.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import top.arkstack.shine.mq.demo.util.IdLayout;
+import top.arkstack.shine.mq.demo.util.SnowflakeIdGenerator;
+import top.arkstack.shine.mq.demo.util.SystemTimeSource;
+
+/**
+ * SnowflakeIdGenerator 基准测试
+ * <p>
+ * 线程数由 {@link BenchmarkRunner} 控制（1/4/16/64），所有线程共享同一个生成器，与生产环境 getInstance() 的用法一致。
+ * <p>
+ * 默认布局每毫秒只有4096个序列，单线程就能用完，测到的是等待下一毫秒的时间而不是锁、CAS、通道的开销，
+ * 这里使用 40/3/20 的宽序列布局（每个通道每毫秒约104万个），保证测量期间不会触及时钟上限
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@State(Scope.Benchmark)
+public class SnowflakeIdGeneratorBenchmark {
+
+    /**
+     * 宽序列布局，机器id 3位，序列 20位
+     */
+    private static final IdLayout WIDE_SEQUENCE = new IdLayout(IdLayout.DEFAULT.getStartTime(), 3, 20);
+
+    /**
+     * 分片通道位数 (0~3)，0 即不分片
+     */
+    @Param({"0"})
+    public int laneBits;
+
+    private SnowflakeIdGenerator generator;
+
+    private final Object monitor = new Object();
+
+    @Setup
+    public void setup() {
+        generator = new SnowflakeIdGenerator(WIDE_SEQUENCE, 0L, laneBits, 0L, SystemTimeSource.INSTANCE);
+    }
+
+    @Benchmark
+    public long nextNormalId() {
+        return generator.nextNormalId();
+    }
+
+    /**
+     * nextNormalId + 位反转，与 nextNormalId 的差值即 reverse() 的开销
+     */
+    @Benchmark
+    public long nextId() {
+        return generator.nextId();
+    }
+
+    /**
+     * 在外层加一把全局锁，模拟 synchronized nextNormalId 的旧实现，与 nextNormalId 的差值即锁的开销
+     */
+    @Benchmark
+    public long lockedNextNormalId() {
+        synchronized (monitor) {
+            return generator.nextNormalId();
+        }
+    }
+}
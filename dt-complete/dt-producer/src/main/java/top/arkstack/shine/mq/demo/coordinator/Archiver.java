@@ -0,0 +1,19 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import top.arkstack.shine.mq.demo.dao.model.CoordinatorArchive;
+
+import java.util.List;
+
+/**
+ * 归档超过保留期限的消息，归档成功后消息才会从协调者中移除
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public interface Archiver {
+
+    /**
+     * 批量归档，失败时抛出异常，消息保留在协调者中下一轮重试
+     */
+    void archive(List<CoordinatorArchive> records) throws Exception;
+}
@@ -0,0 +1,28 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import top.arkstack.shine.mq.bean.PrepareMessage;
+import top.arkstack.shine.mq.coordinator.Coordinator;
+
+/**
+ * 记录消息补偿次数的协调者
+ * <p>
+ * 遍历出来的消息不一定真正被补偿：最近补偿过的会被去重跳过，超过截止时间的留给下一轮。
+ * Daemon只在真正补偿之后调用这里计数，补偿次数因此不会随遍历的轮数增长
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public interface AttemptCountingCoordinator extends Coordinator {
+
+    /**
+     * ready消息重新投递了一次（无论成功与否）
+     *
+     * @param msgId 遍历时拿到的msgId
+     */
+    void readyAttempted(String msgId);
+
+    /**
+     * prepare消息回查了一次但仍留在协调者中（回查失败或补偿失败）
+     */
+    void prepareAttempted(PrepareMessage message);
+}
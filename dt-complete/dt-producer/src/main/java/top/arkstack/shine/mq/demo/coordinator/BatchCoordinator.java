@@ -0,0 +1,25 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import top.arkstack.shine.mq.bean.PrepareMessage;
+import top.arkstack.shine.mq.coordinator.Coordinator;
+
+import java.util.List;
+
+/**
+ * 支持批量写入的协调者，一批消息只需要一次往返
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public interface BatchCoordinator extends Coordinator {
+
+    /**
+     * 批量写入prepare消息
+     */
+    void setPrepare(List<PrepareMessage> prepareMessages);
+
+    /**
+     * 批量删除已经确认的ready消息
+     */
+    void delReady(List<String> msgIds);
+}
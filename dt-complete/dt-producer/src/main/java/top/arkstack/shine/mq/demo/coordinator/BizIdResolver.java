@@ -0,0 +1,44 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import top.arkstack.shine.mq.bean.PrepareMessage;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 读取消息中的bizId
+ * <p>
+ * 通过一个样例PrepareMessage找出bizId对应的字段名，ready消息中有同名字段时按该字段读取，否则返回null
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+final class BizIdResolver {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final String property;
+
+    BizIdResolver() {
+        String bizId = "\u0001bizId";
+        JsonNode sample = mapper.valueToTree(new PrepareMessage("0", bizId, "exchange", "routingKey"));
+        String found = null;
+        for (Iterator<Map.Entry<String, JsonNode>> fields = sample.fields(); fields.hasNext(); ) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            if (bizId.equals(field.getValue().textValue())) {
+                found = field.getKey();
+            }
+        }
+        this.property = found;
+    }
+
+    String bizId(Object message) {
+        if (property == null || message == null) {
+            return null;
+        }
+        JsonNode value = mapper.valueToTree(message).get(property);
+        return value == null || !value.isTextual() ? null : value.textValue();
+    }
+}
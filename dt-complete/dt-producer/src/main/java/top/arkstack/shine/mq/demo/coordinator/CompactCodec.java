@@ -0,0 +1,222 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import top.arkstack.shine.mq.bean.PrepareMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 协调者消息的紧凑二进制编码
+ * <p>
+ * 格式：[byte 版本][varint 写入时间][varint 类名][varint 字段数]{[varint 字段名][byte 类型][值]}...
+ * <ul>
+ * <li>类名、字段名以及bizId、exchange、routingKey的值使用 {@link CompactDictionary} 的编号</li>
+ * <li>十进制数字字符串（如checkBackId）使用varint</li>
+ * <li>其他字符串使用utf8，其他值（如data）保留json</li>
+ * </ul>
+ * 旧格式（json）的第一个字节是 '{'，与版本号不同，读取时两种格式都支持
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+final class CompactCodec {
+
+    static final byte VERSION = 1;
+
+    private static final String TYPE_PROPERTY = "@class";
+
+    private static final byte NULL = 0;
+
+    private static final byte DICT = 1;
+
+    private static final byte NUMBER = 2;
+
+    private static final byte TEXT = 3;
+
+    private static final byte JSON = 4;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final CompactDictionary dictionary;
+
+    /**
+     * 值使用字典编码的字段
+     */
+    private final Set<String> dictionaryFields;
+
+    CompactCodec(CompactDictionary dictionary) {
+        this.dictionary = dictionary;
+        //与 GenericJackson2JsonRedisSerializer 一致，data等Object字段保留类型信息
+        mapper.enableDefaultTyping(ObjectMapper.DefaultTyping.NON_FINAL, JsonTypeInfo.As.PROPERTY);
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        this.dictionaryFields = dictionaryFields();
+    }
+
+    static boolean isCompact(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == VERSION;
+    }
+
+    byte[] encode(long time, Object message) {
+        ObjectNode tree = mapper.valueToTree(message);
+        tree.remove(TYPE_PROPERTY);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(VERSION);
+        writeVarint(out, time);
+        writeVarint(out, dictionary.id(message.getClass().getName()));
+        writeVarint(out, tree.size());
+        try {
+            Iterator<Map.Entry<String, JsonNode>> fields = tree.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                writeVarint(out, dictionary.id(field.getKey()));
+                writeValue(out, field.getKey(), field.getValue());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 只读取写入时间，扫描时不需要解码整条消息就能过滤未超时的消息
+     */
+    static long time(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        in.get();
+        return readVarint(in);
+    }
+
+    CoordinatorEntry decode(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (in.get() != VERSION) {
+            throw new IllegalArgumentException(String.format("Unknown compact version: %d", bytes[0]));
+        }
+        long time = readVarint(in);
+        ObjectNode tree = mapper.createObjectNode();
+        tree.put(TYPE_PROPERTY, dictionary.value((int) readVarint(in)));
+        long size = readVarint(in);
+        try {
+            for (long i = 0; i < size; i++) {
+                String name = dictionary.value((int) readVarint(in));
+                tree.set(name, readValue(in));
+            }
+            return new CoordinatorEntry(time, mapper.treeToValue(tree, Object.class));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeValue(ByteArrayOutputStream out, String name, JsonNode value) throws IOException {
+        if (value == null || value.isNull()) {
+            out.write(NULL);
+        } else if (value.isTextual() && isNumber(value.textValue())) {
+            out.write(NUMBER);
+            writeVarint(out, Long.parseLong(value.textValue()));
+        } else if (value.isTextual() && dictionaryFields.contains(name)) {
+            out.write(DICT);
+            writeVarint(out, dictionary.id(value.textValue()));
+        } else if (value.isTextual()) {
+            out.write(TEXT);
+            writeBytes(out, value.textValue().getBytes(StandardCharsets.UTF_8));
+        } else {
+            out.write(JSON);
+            writeBytes(out, mapper.writeValueAsBytes(value));
+        }
+    }
+
+    private JsonNode readValue(ByteBuffer in) throws IOException {
+        byte type = in.get();
+        switch (type) {
+            case NULL:
+                return mapper.getNodeFactory().nullNode();
+            case NUMBER:
+                return mapper.getNodeFactory().textNode(Long.toString(readVarint(in)));
+            case DICT:
+                return mapper.getNodeFactory().textNode(dictionary.value((int) readVarint(in)));
+            case TEXT:
+                return mapper.getNodeFactory().textNode(new String(readBytes(in), StandardCharsets.UTF_8));
+            case JSON:
+                return mapper.readTree(readBytes(in));
+            default:
+                throw new IllegalArgumentException(String.format("Unknown compact value type: %d", type));
+        }
+    }
+
+    /**
+     * 只有规范的非负十进制数（无前导0）才能无损地还原
+     */
+    private static boolean isNumber(String value) {
+        int length = value.length();
+        if (length == 0 || length > 18 || (length > 1 && value.charAt(0) == '0')) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 通过一个样例消息找出bizId、exchange、routingKey对应的字段名，不依赖消息类的字段命名
+     */
+    private Set<String> dictionaryFields() {
+        String bizId = "\u0001bizId";
+        String exchange = "\u0001exchange";
+        String routingKey = "\u0001routingKey";
+        JsonNode sample = mapper.valueToTree(new PrepareMessage("0", bizId, exchange, routingKey));
+        Set<String> fields = new HashSet<>();
+        sample.fields().forEachRemaining(field -> {
+            String value = field.getValue().textValue();
+            if (bizId.equals(value) || exchange.equals(value) || routingKey.equals(value)) {
+                fields.add(field.getKey());
+            }
+        });
+        return fields;
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        byte[] bytes = new byte[(int) readVarint(in)];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
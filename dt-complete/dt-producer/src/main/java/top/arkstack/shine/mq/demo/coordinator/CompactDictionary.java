@@ -0,0 +1,79 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 保存在redis中的字符串字典，字符串 -> 编号
+ * <p>
+ * 编号只分配一次、不会改变，各节点本地缓存，只有第一次遇到的字符串需要访问redis
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+final class CompactDictionary {
+
+    /**
+     * 已有编号直接返回，否则分配新编号并写入正反两个hash
+     */
+    private static final DefaultRedisScript<Long> ASSIGN_SCRIPT = new DefaultRedisScript<>(
+            "local id = redis.call('HGET', KEYS[1], ARGV[1]) " +
+                    "if id then return tonumber(id) end " +
+                    "id = redis.call('INCR', KEYS[3]) " +
+                    "redis.call('HSET', KEYS[1], ARGV[1], id) " +
+                    "redis.call('HSET', KEYS[2], id, ARGV[1]) " +
+                    "return id", Long.class);
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final String dictKey;
+
+    private final String reverseKey;
+
+    private final String seqKey;
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+
+    private final Map<Integer, String> values = new ConcurrentHashMap<>();
+
+    CompactDictionary(StringRedisTemplate redisTemplate, String prefix) {
+        this.redisTemplate = redisTemplate;
+        this.dictKey = prefix + "compact_dict";
+        this.reverseKey = prefix + "compact_dict_rev";
+        this.seqKey = prefix + "compact_dict_seq";
+    }
+
+    int id(String value) {
+        Integer id = ids.get(value);
+        if (id != null) {
+            return id;
+        }
+        Long assigned = redisTemplate.execute(ASSIGN_SCRIPT, Arrays.asList(dictKey, reverseKey, seqKey), value);
+        if (assigned == null) {
+            throw new IllegalStateException(String.format("Assign dictionary id failed, value: %s", value));
+        }
+        id = assigned.intValue();
+        ids.put(value, id);
+        values.put(id, value);
+        return id;
+    }
+
+    String value(int id) {
+        String value = values.get(id);
+        if (value != null) {
+            return value;
+        }
+        Object stored = redisTemplate.opsForHash().get(reverseKey, String.valueOf(id));
+        if (stored == null) {
+            throw new IllegalStateException(String.format("Unknown dictionary id: %d", id));
+        }
+        value = stored.toString();
+        values.put(id, value);
+        ids.put(value, id);
+        return value;
+    }
+}
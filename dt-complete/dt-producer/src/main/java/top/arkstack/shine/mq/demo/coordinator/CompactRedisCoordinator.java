@@ -0,0 +1,450 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import top.arkstack.shine.mq.bean.EventMessage;
+import top.arkstack.shine.mq.bean.PrepareMessage;
+import top.arkstack.shine.mq.coordinator.Coordinator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 紧凑编码的redis协调者
+ * <p>
+ * 消息使用 {@link CompactCodec} 编码后存放在 prefix + compact_prepare、prefix + compact_ready 两个hash中，
+ * 重复的exchange、routingKey、bizId只保存字典编号，checkBackId保存为varint。
+ * <p>
+ * 迁移：读取时同时支持旧的json格式。启动后在后台逐条把旧消息转成紧凑格式搬到新的hash，来源有两种：
+ * <ul>
+ * <li>开启 migrateScan 时，按 prefix + scan_layout 记录的槽位数和集群模式，迁移 {@link ScanRedisCoordinator}
+ * 的 scan_prepare_{bizId}_{slot}、scan_ready_{slot}，即 spoolingCoordinator 默认写入的存储；</li>
+ * <li>配置的旧hash（如 lua_prepare，或shine-mq默认协调者的hash），值可以是 CoordinatorEntry 的json，
+ * 也可以是不带写入时间的 PrepareMessage/EventMessage json，后者以迁移时间作为写入时间。</li>
+ * </ul>
+ * 迁移期间的删除同时作用于旧的hash，避免已经删除的消息被搬过来；无法解码的消息留在原处并记录日志，
+ * 全部搬完后才停止删除旧的hash。迁移使用两个key的脚本，不支持集群模式
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Slf4j
+public class CompactRedisCoordinator extends DelegatingCoordinator implements PagedCoordinator {
+
+    /**
+     * 旧消息仍然存在时才搬到新的hash，新的hash中已有则不覆盖
+     */
+    private static final String MIGRATE_SCRIPT =
+            "if redis.call('HEXISTS', KEYS[1], ARGV[1]) == 0 then return 0 end " +
+                    "redis.call('HSETNX', KEYS[2], ARGV[1], ARGV[2]) " +
+                    "return redis.call('HDEL', KEYS[1], ARGV[1])";
+
+    private final GenericJackson2JsonRedisSerializer serializer = new GenericJackson2JsonRedisSerializer();
+
+    private final StringRedisTemplate redisTemplate;
+
+    /**
+     * 不做序列化，直接读写字节
+     */
+    private final RedisTemplate<byte[], byte[]> rawTemplate;
+
+    private final CompactCodec codec;
+
+    private final byte[] prepareKey;
+
+    private final byte[] readyKey;
+
+    private final long timeoutMillis;
+
+    private final List<byte[]> legacyPrepareKeys = new ArrayList<>();
+
+    private final List<byte[]> legacyReadyKeys = new ArrayList<>();
+
+    /**
+     * 需要迁移的 scanRedisCoordinator 布局，null即不迁移
+     */
+    private final ScanSource scanSource;
+
+    /**
+     * 迁移完成前删除同时作用于旧的hash
+     */
+    private volatile boolean migrating;
+
+    /**
+     * @param delegate           默认协调者，负责投递
+     * @param connectionFactory  redis连接
+     * @param prefix             redis前缀，与 shine.mq.distributed.redis-prefix 一致
+     * @param timeoutMillis      消息超时时长
+     * @param migrateScan        是否迁移 scanRedisCoordinator 中的消息
+     * @param legacyPrepareKeys  需要迁移的旧prepare hash（不含前缀）
+     * @param legacyReadyKeys    需要迁移的旧ready hash（不含前缀）
+     */
+    public CompactRedisCoordinator(Coordinator delegate, RedisConnectionFactory connectionFactory, String prefix,
+                                   long timeoutMillis, boolean migrateScan, List<String> legacyPrepareKeys,
+                                   List<String> legacyReadyKeys) {
+        super(delegate);
+        this.redisTemplate = new StringRedisTemplate(connectionFactory);
+        this.rawTemplate = new RedisTemplate<>();
+        this.rawTemplate.setConnectionFactory(connectionFactory);
+        this.rawTemplate.setEnableDefaultSerializer(false);
+        this.rawTemplate.afterPropertiesSet();
+        this.codec = new CompactCodec(new CompactDictionary(redisTemplate, prefix));
+        this.prepareKey = bytes(prefix + "compact_prepare");
+        this.readyKey = bytes(prefix + "compact_ready");
+        this.timeoutMillis = timeoutMillis;
+        legacyPrepareKeys.forEach(key -> this.legacyPrepareKeys.add(bytes(prefix + key)));
+        legacyReadyKeys.forEach(key -> this.legacyReadyKeys.add(bytes(prefix + key)));
+        this.scanSource = migrateScan ? scanSource(prefix) : null;
+        if (!this.legacyPrepareKeys.isEmpty() || !this.legacyReadyKeys.isEmpty() || scanSource != null) {
+            migrating = true;
+            Thread migration = new Thread(this::migrate, "compact-coordinator-migration");
+            migration.setDaemon(true);
+            migration.start();
+        }
+    }
+
+    @Override
+    public void setPrepare(PrepareMessage prepareMessage) {
+        byte[] value = codec.encode(System.currentTimeMillis(), prepareMessage);
+        redisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.hSet(prepareKey, bytes(prepareMessage.getCheckBackId()), value));
+    }
+
+    @Override
+    public void setReady(String msgId, String checkBackId, EventMessage message) {
+        byte[] value = codec.encode(System.currentTimeMillis(), message);
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.hSet(readyKey, bytes(msgId), value);
+            deletePrepare(connection, checkBackId);
+            return null;
+        });
+    }
+
+    @Override
+    public void delPrepare(String checkBackId) {
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            deletePrepare(connection, checkBackId);
+            return null;
+        });
+    }
+
+    @Override
+    public void delReady(String msgId) {
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            deleteReady(connection, msgId);
+            return null;
+        });
+    }
+
+    /**
+     * 一次性加载全部超时的prepare消息，积压大时请使用 {@link #scanPrepare(int, PageConsumer)}
+     */
+    @Override
+    public List<PrepareMessage> getPrepare() throws Exception {
+        List<PrepareMessage> prepare = new ArrayList<>();
+        scanPrepare(1000, prepare::addAll);
+        return prepare;
+    }
+
+    /**
+     * 一次性加载全部超时的ready消息，积压大时请使用 {@link #scanReady(int, PageConsumer)}
+     */
+    @Override
+    public List<EventMessage> getReady() throws Exception {
+        List<EventMessage> ready = new ArrayList<>();
+        scanReady(1000, ready::addAll);
+        return ready;
+    }
+
+    /**
+     * 默认协调者完成投递后，prepare消息已经转交给它跟踪，这里删除自己存储的prepare消息
+     */
+    @Override
+    public void compensatePrepare(PrepareMessage message) throws Exception {
+        super.compensatePrepare(message);
+        delPrepare(message.getCheckBackId());
+    }
+
+    @Override
+    public void scanPrepare(int pageSize, PageConsumer<PrepareMessage> consumer) throws Exception {
+        scan(prepareKey, pageSize, consumer);
+    }
+
+    @Override
+    public void scanReady(int pageSize, PageConsumer<EventMessage> consumer) throws Exception {
+        scan(readyKey, pageSize, consumer);
+    }
+
+    /**
+     * HSCAN分页遍历，先只读取写入时间过滤未超时的消息，再解码；无法解码的消息记录日志后跳过
+     */
+    @SuppressWarnings("unchecked")
+    private <T> void scan(byte[] key, int pageSize, PageConsumer<T> consumer) throws Exception {
+        long deadline = System.currentTimeMillis() - timeoutMillis;
+        List<String> ids = new ArrayList<>(pageSize);
+        List<T> page = new ArrayList<>(pageSize);
+        try (Cursor<Map.Entry<byte[], byte[]>> cursor = rawTemplate.<byte[], byte[]>opsForHash().scan(key,
+                ScanOptions.scanOptions().count(pageSize).build())) {
+            while (cursor.hasNext()) {
+                Map.Entry<byte[], byte[]> field = cursor.next();
+                byte[] value = field.getValue();
+                if (CompactCodec.isCompact(value) && CompactCodec.time(value) > deadline) {
+                    continue;
+                }
+                CoordinatorEntry entry;
+                try {
+                    entry = decode(value);
+                } catch (Exception e) {
+                    //无法解码的消息不补偿，跳过它继续遍历，不影响其他消息
+                    log.error("Decode coordinator message error, key: {}, field: {}",
+                            new String(key, StandardCharsets.UTF_8), new String(field.getKey(), StandardCharsets.UTF_8), e);
+                    continue;
+                }
+                if (entry.getTime() > deadline) {
+                    continue;
+                }
+                ids.add(new String(field.getKey(), StandardCharsets.UTF_8));
+                page.add((T) entry.getMessage());
+                if (page.size() >= pageSize) {
+                    consumer.accept(ids, page);
+                    ids = new ArrayList<>(pageSize);
+                    page = new ArrayList<>(pageSize);
+                }
+            }
+        }
+        if (!page.isEmpty()) {
+            consumer.accept(ids, page);
+        }
+    }
+
+    /**
+     * 两种格式都支持：紧凑格式以版本号开头，旧格式是 CoordinatorEntry 的json
+     */
+    private CoordinatorEntry decode(byte[] value) {
+        return CompactCodec.isCompact(value) ? codec.decode(value) : (CoordinatorEntry) serializer.deserialize(value);
+    }
+
+    /**
+     * 迁移时还支持不带写入时间的消息json，以迁移时间作为写入时间
+     */
+    private CoordinatorEntry decodeLegacy(byte[] value, long now) {
+        if (CompactCodec.isCompact(value)) {
+            return codec.decode(value);
+        }
+        Object decoded = serializer.deserialize(value);
+        if (decoded instanceof CoordinatorEntry) {
+            return (CoordinatorEntry) decoded;
+        }
+        if (decoded instanceof PrepareMessage || decoded instanceof EventMessage) {
+            return new CoordinatorEntry(now, decoded);
+        }
+        throw new IllegalStateException(String.format("Unknown coordinator message type: %s",
+                decoded == null ? null : decoded.getClass().getName()));
+    }
+
+    private void deletePrepare(RedisConnection connection, String checkBackId) {
+        byte[] field = bytes(checkBackId);
+        connection.hDel(prepareKey, field);
+        if (!migrating) {
+            return;
+        }
+        legacyPrepareKeys.forEach(key -> connection.hDel(key, field));
+        if (scanSource != null) {
+            scanSource.prepareKeys(checkBackId).forEach(key -> connection.hDel(key, field));
+        }
+    }
+
+    private void deleteReady(RedisConnection connection, String msgId) {
+        byte[] field = bytes(msgId);
+        connection.hDel(readyKey, field);
+        if (!migrating) {
+            return;
+        }
+        legacyReadyKeys.forEach(key -> connection.hDel(key, field));
+        if (scanSource != null) {
+            connection.hDel(scanSource.readyKey(msgId), field);
+        }
+    }
+
+    /**
+     * 依次迁移配置的旧hash和 scanRedisCoordinator 的各个分区，全部搬完后停止删除旧的hash
+     */
+    private void migrate() {
+        boolean finished = true;
+        for (byte[] key : legacyPrepareKeys) {
+            finished &= migrate(key, prepareKey);
+        }
+        for (byte[] key : legacyReadyKeys) {
+            finished &= migrate(key, readyKey);
+        }
+        if (scanSource != null) {
+            boolean prepared = true;
+            for (byte[] key : scanSource.prepareKeys()) {
+                prepared &= migrate(key, prepareKey) && dropAttempts(key);
+            }
+            //prepare消息搬空后，scanRedisCoordinator 的 checkBackId -> bizId 索引也不再需要
+            if (prepared) {
+                redisTemplate.delete(scanSource.indexKeys());
+            }
+            finished &= prepared;
+            for (byte[] key : scanSource.readyKeys()) {
+                finished &= migrate(key, readyKey) && dropAttempts(key);
+            }
+        }
+        if (finished) {
+            migrating = false;
+            log.info("Compact coordinator migration finished");
+        } else {
+            log.warn("Compact coordinator migration incomplete, deletes keep applying to legacy hashes, retry on next start");
+        }
+    }
+
+    /**
+     * 逐条把旧hash中的消息转成紧凑格式，原有的写入时间保持不变，返回是否全部搬完
+     */
+    private boolean migrate(byte[] legacyKey, byte[] targetKey) {
+        long migrated = 0;
+        long skipped = 0;
+        long now = System.currentTimeMillis();
+        try (Cursor<Map.Entry<byte[], byte[]>> cursor = rawTemplate.<byte[], byte[]>opsForHash().scan(legacyKey,
+                ScanOptions.scanOptions().count(1000).build())) {
+            while (cursor.hasNext()) {
+                Map.Entry<byte[], byte[]> field = cursor.next();
+                CoordinatorEntry entry;
+                try {
+                    entry = decodeLegacy(field.getValue(), now);
+                } catch (Exception e) {
+                    skipped++;
+                    log.error("Decode legacy coordinator message error, key: {}, field: {}",
+                            new String(legacyKey, StandardCharsets.UTF_8), new String(field.getKey(), StandardCharsets.UTF_8), e);
+                    continue;
+                }
+                byte[] value = codec.encode(entry.getTime(), entry.getMessage());
+                Long moved = redisTemplate.execute((RedisCallback<Long>) connection -> connection.eval(
+                        bytes(MIGRATE_SCRIPT), ReturnType.INTEGER, 2, legacyKey, targetKey, field.getKey(), value));
+                if (moved != null && moved > 0) {
+                    migrated++;
+                }
+            }
+            log.info("Compact coordinator migrated, from: {}, to: {}, migrated: {}, skipped: {}",
+                    new String(legacyKey, StandardCharsets.UTF_8), new String(targetKey, StandardCharsets.UTF_8),
+                    migrated, skipped);
+            return skipped == 0;
+        } catch (Exception e) {
+            log.error("Compact coordinator migration error, from: {}, migrated: {}",
+                    new String(legacyKey, StandardCharsets.UTF_8), migrated, e);
+            return false;
+        }
+    }
+
+    /**
+     * scanRedisCoordinator 的分区搬空后，删除它的补偿次数
+     */
+    private boolean dropAttempts(byte[] key) {
+        String name = new String(key, StandardCharsets.UTF_8);
+        Long size = redisTemplate.opsForHash().size(name);
+        if (size != null && size > 0) {
+            return false;
+        }
+        redisTemplate.delete(ScanRedisCoordinator.attemptsKey(name));
+        return true;
+    }
+
+    /**
+     * 读取 scanRedisCoordinator 记录的布局，没有记录即没有写入过消息，不需要迁移。
+     * 它自己的布局迁移（修改槽位数）需要先完成
+     */
+    private ScanSource scanSource(String prefix) {
+        Map<Object, Object> layout = redisTemplate.opsForHash().entries(prefix + ScanRedisCoordinator.LAYOUT_KEY);
+        if (layout == null || layout.isEmpty()) {
+            return null;
+        }
+        Set<String> bizIds = redisTemplate.opsForSet().members(prefix + ScanRedisCoordinator.BIZ_KEY);
+        return new ScanSource(prefix, Integer.parseInt(String.valueOf(layout.get("partitions"))),
+                Boolean.parseBoolean(String.valueOf(layout.get("cluster"))),
+                bizIds == null ? Collections.emptySet() : bizIds);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * scanRedisCoordinator 的分区布局，key名与 {@link ScanRedisCoordinator} 一致
+     */
+    private static class ScanSource {
+
+        private final String prepareBase;
+
+        private final String readyBase;
+
+        private final String indexBase;
+
+        private final int partitions;
+
+        private final boolean cluster;
+
+        private final Set<String> bizIds;
+
+        private ScanSource(String prefix, int partitions, boolean cluster, Set<String> bizIds) {
+            this.prepareBase = prefix + ScanRedisCoordinator.PREPARE_KEY;
+            this.readyBase = prefix + ScanRedisCoordinator.READY_KEY;
+            this.indexBase = prefix + ScanRedisCoordinator.INDEX_KEY;
+            this.partitions = partitions;
+            this.cluster = cluster;
+            this.bizIds = bizIds;
+        }
+
+        /**
+         * 删除prepare消息时只有checkBackId，需要在每个bizId的同一槽位中删除
+         */
+        private List<byte[]> prepareKeys(String checkBackId) {
+            int slot = ScanRedisCoordinator.slot(checkBackId, partitions);
+            List<byte[]> keys = new ArrayList<>(bizIds.size());
+            bizIds.forEach(bizId -> keys.add(bytes(ScanRedisCoordinator.prepareKey(prepareBase, cluster, bizId, slot))));
+            return keys;
+        }
+
+        private byte[] readyKey(String msgId) {
+            return bytes(ScanRedisCoordinator.readyKey(readyBase, cluster, ScanRedisCoordinator.slot(msgId, partitions)));
+        }
+
+        private List<byte[]> prepareKeys() {
+            List<byte[]> keys = new ArrayList<>(bizIds.size() * partitions);
+            bizIds.forEach(bizId -> {
+                for (int slot = 0; slot < partitions; slot++) {
+                    keys.add(bytes(ScanRedisCoordinator.prepareKey(prepareBase, cluster, bizId, slot)));
+                }
+            });
+            return keys;
+        }
+
+        private List<String> indexKeys() {
+            List<String> keys = new ArrayList<>(partitions);
+            for (int slot = 0; slot < partitions; slot++) {
+                keys.add(ScanRedisCoordinator.indexKey(indexBase, cluster, slot));
+            }
+            return keys;
+        }
+
+        private List<byte[]> readyKeys() {
+            List<byte[]> keys = new ArrayList<>(partitions);
+            for (int slot = 0; slot < partitions; slot++) {
+                keys.add(bytes(ScanRedisCoordinator.readyKey(readyBase, cluster, slot)));
+            }
+            return keys;
+        }
+    }
+}
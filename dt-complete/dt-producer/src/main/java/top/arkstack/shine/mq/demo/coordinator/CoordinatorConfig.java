@@ -0,0 +1,160 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import top.arkstack.shine.mq.coordinator.Coordinator;
+import top.arkstack.shine.mq.demo.dao.CoordinatorArchiveMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 自定义协调者配置
+ * <p>
+ * 自定义协调者都不参与按类型注入（autowireCandidate = false），避免和默认的redisCoordinator冲突，
+ * 通过 @DistributedTrans(coordinator = "beanName") 或 @Resource(name = "beanName") 按名称使用。
+ * <p>
+ * 每个自定义协调者由 coordinator.&lt;name&gt;.enabled 开启，Daemon只补偿已经开启的存储协调者，
+ * 包装其他协调者的 {@link WrappingCoordinator}（如 spoolingCoordinator）和shine-mq默认的redisCoordinator不补偿，
+ * 也可以用 daemon.coordinators 显式指定；
+ * 默认只开启 DistributedTran 使用的 spoolingCoordinator 和它包装的 scanRedisCoordinator，
+ * 包装的协调者由 coordinator.spool.delegate 指定，如切换到 compactRedisCoordinator
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Configuration
+public class CoordinatorConfig {
+
+    @Bean
+    @ConfigurationProperties(prefix = "daemon.retention")
+    public RetentionPolicy retentionPolicy() {
+        return new RetentionPolicy();
+    }
+
+    /**
+     * daemon.retention.archive: file（默认，本地gzip文件）或 db（coordinator_archive 表）
+     */
+    @Bean
+    public Archiver coordinatorArchiver(RetentionPolicy retentionPolicy, CoordinatorArchiveMapper mapper) {
+        if ("db".equals(retentionPolicy.getArchive())) {
+            return new MysqlArchiver(mapper);
+        }
+        return new FileArchiver(new File(retentionPolicy.getArchiveDir()));
+    }
+
+    @Bean(autowireCandidate = false)
+    @ConditionalOnProperty(name = "coordinator.scan.enabled", havingValue = "true", matchIfMissing = true)
+    public ScanRedisCoordinator scanRedisCoordinator(@Qualifier("redisCoordinator") Coordinator redisCoordinator,
+                                                     RedisConnectionFactory connectionFactory,
+                                                     @Value("${shine.mq.distributed.redis-prefix:}") String prefix,
+                                                     @Value("${coordinator.partitions:16}") int partitions,
+                                                     @Value("${coordinator.timeout-millis:30000}") long timeoutMillis,
+                                                     @Value("${coordinator.cluster.enabled:false}") boolean cluster,
+                                                     RetentionPolicy retentionPolicy, Archiver coordinatorArchiver) {
+        return new ScanRedisCoordinator(redisCoordinator, connectionFactory, prefix, partitions, timeoutMillis, cluster,
+                retentionPolicy.isEnabled() ? retentionPolicy : null, coordinatorArchiver);
+    }
+
+    @Bean(autowireCandidate = false)
+    @ConditionalOnProperty(name = "coordinator.delay.enabled", havingValue = "true")
+    public DelayRedisCoordinator delayRedisCoordinator(@Qualifier("redisCoordinator") Coordinator redisCoordinator,
+                                                       RedisConnectionFactory connectionFactory,
+                                                       @Value("${shine.mq.distributed.redis-prefix:}") String prefix,
+                                                       @Value("${coordinator.timeout-millis:30000}") long timeoutMillis,
+                                                       @Value("${coordinator.delay.base-backoff-millis:30000}") long baseBackoffMillis,
+                                                       @Value("${coordinator.delay.max-backoff-millis:1800000}") long maxBackoffMillis,
+                                                       @Value("${coordinator.cluster.enabled:false}") boolean cluster) {
+        requireStandalone("delayRedisCoordinator", cluster);
+        return new DelayRedisCoordinator(redisCoordinator, connectionFactory, prefix, timeoutMillis,
+                baseBackoffMillis, maxBackoffMillis);
+    }
+
+    @Bean(autowireCandidate = false)
+    @ConditionalOnProperty(name = "coordinator.lua.enabled", havingValue = "true")
+    public LuaRedisCoordinator luaRedisCoordinator(@Qualifier("redisCoordinator") Coordinator redisCoordinator,
+                                                   RedisConnectionFactory connectionFactory,
+                                                   @Value("${shine.mq.distributed.redis-prefix:}") String prefix,
+                                                   @Value("${coordinator.timeout-millis:30000}") long timeoutMillis,
+                                                   @Value("${coordinator.lua.max-batch-size:128}") int maxBatchSize,
+                                                   @Value("${coordinator.lua.window-millis:0}") long windowMillis,
+                                                   @Value("${coordinator.cluster.enabled:false}") boolean cluster) {
+        requireStandalone("luaRedisCoordinator", cluster);
+        return new LuaRedisCoordinator(redisCoordinator, connectionFactory, prefix, timeoutMillis, maxBatchSize, windowMillis);
+    }
+
+    @Bean(autowireCandidate = false)
+    @ConditionalOnProperty(name = "coordinator.wal.enabled", havingValue = "true")
+    public WalCoordinator walCoordinator(@Qualifier("redisCoordinator") Coordinator redisCoordinator,
+                                         @Value("${coordinator.wal.dir:./data/wal}") String dir,
+                                         @Value("${coordinator.wal.segment-bytes:67108864}") int segmentBytes,
+                                         @Value("${coordinator.timeout-millis:30000}") long timeoutMillis,
+                                         @Value("${coordinator.wal.sync-interval-millis:2}") long syncIntervalMillis,
+                                         @Value("${coordinator.wal.sync-timeout-millis:1000}") long syncTimeoutMillis,
+                                         @Value("${coordinator.wal.compact-interval-millis:60000}") long compactIntervalMillis) throws IOException {
+        return new WalCoordinator(redisCoordinator, new File(dir), segmentBytes, timeoutMillis,
+                syncIntervalMillis, syncTimeoutMillis, compactIntervalMillis);
+    }
+
+    @Bean(autowireCandidate = false)
+    @ConditionalOnProperty(name = "coordinator.compact.enabled", havingValue = "true")
+    public CompactRedisCoordinator compactRedisCoordinator(@Qualifier("redisCoordinator") Coordinator redisCoordinator,
+                                                           RedisConnectionFactory connectionFactory,
+                                                           @Value("${shine.mq.distributed.redis-prefix:}") String prefix,
+                                                           @Value("${coordinator.timeout-millis:30000}") long timeoutMillis,
+                                                           @Value("${coordinator.compact.migrate-scan:false}") boolean migrateScan,
+                                                           @Value("${coordinator.compact.migrate-prepare-keys:}") String[] migratePrepareKeys,
+                                                           @Value("${coordinator.compact.migrate-ready-keys:}") String[] migrateReadyKeys,
+                                                           @Value("${coordinator.cluster.enabled:false}") boolean cluster) {
+        if (migrateScan || migratePrepareKeys.length > 0 || migrateReadyKeys.length > 0) {
+            requireStandalone("compactRedisCoordinator migration", cluster);
+        }
+        return new CompactRedisCoordinator(redisCoordinator, connectionFactory, prefix, timeoutMillis, migrateScan,
+                Arrays.asList(migratePrepareKeys), Arrays.asList(migrateReadyKeys));
+    }
+
+    /**
+     * 包装 coordinator.spool.delegate 指定的协调者（默认 scanRedisCoordinator），redis卡顿时prepare写入本地队列
+     */
+    @Bean(autowireCandidate = false)
+    @ConditionalOnProperty(name = "coordinator.spool.enabled", havingValue = "true", matchIfMissing = true)
+    public SpoolingCoordinator spoolingCoordinator(BeanFactory beanFactory,
+                                                   @Value("${coordinator.spool.delegate:scanRedisCoordinator}") String delegate,
+                                                   @Value("${coordinator.spool.file:./data/spool/coordinator.spool}") String file,
+                                                   @Value("${coordinator.spool.max-bytes:67108864}") long maxBytes,
+                                                   @Value("${coordinator.spool.budget-millis:50}") long budgetMillis,
+                                                   @Value("${coordinator.spool.writer-threads:16}") int writerThreads,
+                                                   @Value("${coordinator.spool.retry-millis:1000}") long retryMillis,
+                                                   @Value("${coordinator.spool.drain-batch-size:500}") int drainBatchSize) throws IOException {
+        if (!beanFactory.containsBean(delegate)) {
+            throw new IllegalStateException(String.format(
+                    "Spool delegate is not enabled, delegate: %s, enable it with coordinator.<name>.enabled", delegate));
+        }
+        return new SpoolingCoordinator(beanFactory.getBean(delegate, Coordinator.class), new File(file),
+                maxBytes, budgetMillis, writerThreads, retryMillis, drainBatchSize);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "coordinator.spool.enabled", havingValue = "true", matchIfMissing = true)
+    public SpoolHealthIndicator spoolHealthIndicator(BeanFactory beanFactory,
+                                                     @Value("${coordinator.spool.high-watermark:0.8}") double highWatermark) {
+        return new SpoolHealthIndicator(beanFactory.getBean("spoolingCoordinator", SpoolingCoordinator.class), highWatermark);
+    }
+
+    /**
+     * 多key的lua脚本中的key不在同一个slot上，集群模式下无法执行
+     */
+    private static void requireStandalone(String name, boolean cluster) {
+        if (cluster) {
+            throw new IllegalStateException(String.format(
+                    "%s uses multi-key scripts and can't run with coordinator.cluster.enabled", name));
+        }
+    }
+}
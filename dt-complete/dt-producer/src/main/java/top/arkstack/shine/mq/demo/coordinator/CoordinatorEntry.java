@@ -0,0 +1,27 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 协调者中存储的消息，附带写入时间用于判断是否超时
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CoordinatorEntry {
+
+    /**
+     * 写入时间
+     */
+    private long time;
+
+    /**
+     * PrepareMessage 或 EventMessage
+     */
+    private Object message;
+}
@@ -0,0 +1,219 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import top.arkstack.shine.mq.bean.EventMessage;
+import top.arkstack.shine.mq.bean.PrepareMessage;
+import top.arkstack.shine.mq.coordinator.Coordinator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 按到期时间索引的redis协调者
+ * <p>
+ * 消息本身存放在hash中，到期时间存放在sorted set中（score为到期时间），写入时到期时间为 当前时间 + timeoutMillis。
+ * 遍历时只取出已经到期的消息，每条 O(log n)，不会扫描未到期的积压。
+ * 取出的同时把消息的到期时间按重试次数指数退避地推后，失败或节点宕机则在退避后再次到期，
+ * 同一条失败的消息不会每一轮都被重复补偿。
+ * prepare消息补偿成功后直接删除；ready消息重新投递后要等mq确认（{@link #confirmCallback}）才删除，
+ * 确认到达前它已经按退避推后，不会在下一轮立即再次投递
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public class DelayRedisCoordinator extends DelegatingCoordinator implements PagedCoordinator {
+
+    /**
+     * 取出最多 limit 条到期的消息，重试次数加一并按 min(base * 2^(retry-1), max) 推后到期时间，
+     * 返回 id1, 消息1, id2, 消息2 ...
+     * <p>
+     * KEYS[1] 到期时间 sorted set，KEYS[2] 重试次数 hash，KEYS[3] 消息 hash
+     * ARGV[1] 当前时间，ARGV[2] limit，ARGV[3] 基础退避时长，ARGV[4] 最大退避时长
+     */
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> POLL_SCRIPT = new DefaultRedisScript<>(
+            "local now = tonumber(ARGV[1]) " +
+                    "local ids = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', now, 'LIMIT', 0, tonumber(ARGV[2])) " +
+                    "local result = {} " +
+                    "for _, id in ipairs(ids) do " +
+                    "local v = redis.call('HGET', KEYS[3], id) " +
+                    "if v then " +
+                    "local retry = redis.call('HINCRBY', KEYS[2], id, 1) " +
+                    "local backoff = math.min(tonumber(ARGV[3]) * 2 ^ (retry - 1), tonumber(ARGV[4])) " +
+                    "redis.call('ZADD', KEYS[1], math.floor(now + backoff), id) " +
+                    "table.insert(result, id) " +
+                    "table.insert(result, v) " +
+                    "else " +
+                    "redis.call('ZREM', KEYS[1], id) " +
+                    "redis.call('HDEL', KEYS[2], id) " +
+                    "end " +
+                    "end " +
+                    "return result", List.class);
+
+    private final RedisTemplate<String, Object> redisTemplate;
+
+    private final GenericJackson2JsonRedisSerializer serializer = new GenericJackson2JsonRedisSerializer();
+
+    private final DueQueue prepare;
+
+    private final DueQueue ready;
+
+    private final long timeoutMillis;
+
+    private final long baseBackoffMillis;
+
+    private final long maxBackoffMillis;
+
+    /**
+     * @param delegate          默认协调者，负责投递
+     * @param connectionFactory redis连接
+     * @param prefix            redis前缀，与 shine.mq.distributed.redis-prefix 一致
+     * @param timeoutMillis     消息超时时长，写入后经过该时长第一次到期
+     * @param baseBackoffMillis 第一次补偿后的退避时长，之后每次翻倍
+     * @param maxBackoffMillis  最大退避时长
+     */
+    public DelayRedisCoordinator(Coordinator delegate, RedisConnectionFactory connectionFactory, String prefix,
+                                 long timeoutMillis, long baseBackoffMillis, long maxBackoffMillis) {
+        super(delegate);
+        if (baseBackoffMillis < 1 || maxBackoffMillis < baseBackoffMillis) {
+            throw new IllegalArgumentException(String.format(
+                    "Backoff millis must be positive and base can't be greater than max, base: %d, max: %d",
+                    baseBackoffMillis, maxBackoffMillis));
+        }
+        this.redisTemplate = new RedisTemplate<>();
+        this.redisTemplate.setConnectionFactory(connectionFactory);
+        this.redisTemplate.setKeySerializer(new StringRedisSerializer());
+        this.redisTemplate.setValueSerializer(new StringRedisSerializer());
+        this.redisTemplate.setHashKeySerializer(new StringRedisSerializer());
+        this.redisTemplate.setHashValueSerializer(serializer);
+        this.redisTemplate.afterPropertiesSet();
+        this.prepare = new DueQueue(prefix + "delay_prepare");
+        this.ready = new DueQueue(prefix + "delay_ready");
+        this.timeoutMillis = timeoutMillis;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    @Override
+    public void setPrepare(PrepareMessage prepareMessage) {
+        prepare.add(prepareMessage.getCheckBackId(), prepareMessage);
+    }
+
+    @Override
+    public void setReady(String msgId, String checkBackId, EventMessage message) {
+        ready.add(msgId, message);
+        prepare.remove(checkBackId);
+    }
+
+    @Override
+    public void delPrepare(String checkBackId) {
+        prepare.remove(checkBackId);
+    }
+
+    @Override
+    public void delReady(String msgId) {
+        ready.remove(msgId);
+    }
+
+    /**
+     * 一次性取出全部到期的prepare消息，积压大时请使用 {@link #scanPrepare(int, PageConsumer)}
+     */
+    @Override
+    public List<PrepareMessage> getPrepare() throws Exception {
+        List<PrepareMessage> list = new ArrayList<>();
+        scanPrepare(1000, list::addAll);
+        return list;
+    }
+
+    /**
+     * 一次性取出全部到期的ready消息，积压大时请使用 {@link #scanReady(int, PageConsumer)}
+     */
+    @Override
+    public List<EventMessage> getReady() throws Exception {
+        List<EventMessage> list = new ArrayList<>();
+        scanReady(1000, list::addAll);
+        return list;
+    }
+
+    /**
+     * 默认协调者完成投递后，prepare消息已经转交给它跟踪，这里删除自己存储的prepare消息
+     */
+    @Override
+    public void compensatePrepare(PrepareMessage message) throws Exception {
+        super.compensatePrepare(message);
+        prepare.remove(message.getCheckBackId());
+    }
+
+    /**
+     * 逐页取出到期的prepare消息，取出的消息已经推后了到期时间，本轮不会再次取到
+     */
+    @Override
+    public void scanPrepare(int pageSize, PageConsumer<PrepareMessage> consumer) throws Exception {
+        prepare.poll(pageSize, consumer);
+    }
+
+    /**
+     * 逐页取出到期的ready消息，取出的消息已经推后了到期时间，本轮不会再次取到
+     */
+    @Override
+    public void scanReady(int pageSize, PageConsumer<EventMessage> consumer) throws Exception {
+        ready.poll(pageSize, consumer);
+    }
+
+    /**
+     * 消息 hash + 到期时间 sorted set + 重试次数 hash
+     */
+    private class DueQueue {
+
+        private final String messageKey;
+
+        private final String dueKey;
+
+        private final String retryKey;
+
+        DueQueue(String key) {
+            this.messageKey = key;
+            this.dueKey = key + "_due";
+            this.retryKey = key + "_retry";
+        }
+
+        void add(String id, Object message) {
+            redisTemplate.opsForHash().put(messageKey, id, message);
+            redisTemplate.opsForZSet().add(dueKey, id, System.currentTimeMillis() + timeoutMillis);
+        }
+
+        void remove(String id) {
+            redisTemplate.opsForZSet().remove(dueKey, id);
+            redisTemplate.opsForHash().delete(messageKey, id);
+            redisTemplate.opsForHash().delete(retryKey, id);
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        <T> void poll(int pageSize, PageConsumer<T> consumer) throws Exception {
+            StringRedisSerializer stringSerializer = new StringRedisSerializer();
+            List<String> pairs;
+            List<String> ids;
+            do {
+                pairs = redisTemplate.execute(POLL_SCRIPT, stringSerializer, (RedisSerializer) stringSerializer,
+                        Arrays.asList(dueKey, retryKey, messageKey), String.valueOf(System.currentTimeMillis()),
+                        String.valueOf(pageSize), String.valueOf(baseBackoffMillis), String.valueOf(maxBackoffMillis));
+                ids = new ArrayList<>();
+                List<T> page = new ArrayList<>();
+                for (int i = 0; pairs != null && i + 1 < pairs.size(); i += 2) {
+                    ids.add(pairs.get(i));
+                    page.add((T) serializer.deserialize(pairs.get(i + 1).getBytes(StandardCharsets.UTF_8)));
+                }
+                if (!page.isEmpty()) {
+                    consumer.accept(ids, page);
+                }
+            } while (ids.size() >= pageSize);
+        }
+    }
+}
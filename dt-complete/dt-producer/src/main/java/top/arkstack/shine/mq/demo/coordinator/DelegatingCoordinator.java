@@ -0,0 +1,81 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import org.springframework.amqp.rabbit.support.CorrelationData;
+import top.arkstack.shine.mq.bean.EventMessage;
+import top.arkstack.shine.mq.bean.PrepareMessage;
+import top.arkstack.shine.mq.coordinator.Coordinator;
+
+import java.util.List;
+
+/**
+ * 委托协调者，默认所有操作都交给被委托的协调者（一般是默认的redisCoordinator）
+ * <p>
+ * 自定义的协调者继承它，只覆盖需要改变的部分，比如只换掉消息的存储，而投递仍然使用默认实现
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public abstract class DelegatingCoordinator implements Coordinator {
+
+    protected final Coordinator delegate;
+
+    protected DelegatingCoordinator(Coordinator delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void setPrepare(PrepareMessage prepareMessage) {
+        delegate.setPrepare(prepareMessage);
+    }
+
+    @Override
+    public void setReady(String msgId, String checkBackId, EventMessage message) {
+        delegate.setReady(msgId, checkBackId, message);
+    }
+
+    @Override
+    public void delPrepare(String checkBackId) {
+        delegate.delPrepare(checkBackId);
+    }
+
+    @Override
+    public void delReady(String msgId) {
+        delegate.delReady(msgId);
+    }
+
+    @Override
+    public List<PrepareMessage> getPrepare() throws Exception {
+        return delegate.getPrepare();
+    }
+
+    @Override
+    public List<EventMessage> getReady() throws Exception {
+        return delegate.getReady();
+    }
+
+    @Override
+    public void compensatePrepare(PrepareMessage message) throws Exception {
+        delegate.compensatePrepare(message);
+    }
+
+    @Override
+    public void compensateReady(EventMessage message) throws Exception {
+        delegate.compensateReady(message);
+    }
+
+    @Override
+    public Long incrementHash(String key, String hashKey, Long delta) {
+        return delegate.incrementHash(key, hashKey, delta);
+    }
+
+    /**
+     * 投递仍然交给被委托的协调者，但ready消息存放在本协调者中，确认后删除的必须是自己存储的ready消息，
+     * 否则消息确认后仍会被Daemon重复补偿；未确认的消息保留，由Daemon补偿
+     */
+    @Override
+    public void confirmCallback(CorrelationData correlationData, boolean ack) {
+        if (ack && correlationData != null && correlationData.getId() != null) {
+            delReady(correlationData.getId());
+        }
+    }
+}
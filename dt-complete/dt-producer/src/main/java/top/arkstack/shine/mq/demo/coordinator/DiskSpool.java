@@ -0,0 +1,276 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 有界的本地磁盘队列，先进先出
+ * <p>
+ * 文件格式：[long 读位置][int 长度][内容][int crc32]...，每条记录追加后刷盘，消费后更新读位置；
+ * 全部消费完后截断文件。重启后从读位置继续消费，末尾写了一半的记录被丢弃。
+ * <p>
+ * 容量只计算未消费的记录。已消费的部分不少于未消费的部分（且超过 {@link #COMPACT_MIN_BYTES}）时，
+ * 把未消费的记录复制到新文件再原子地替换旧文件，回收已消费的空间，文件大小不超过容量的两倍
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Slf4j
+final class DiskSpool implements Closeable {
+
+    private static final int HEADER = 8;
+
+    /**
+     * 已消费的部分至少这么大才压缩，避免频繁复制
+     */
+    static final long COMPACT_MIN_BYTES = 1024 * 1024;
+
+    private final File file;
+
+    private FileChannel channel;
+
+    private final long maxBytes;
+
+    private long readPos;
+
+    private long writePos;
+
+    private int records;
+
+    /**
+     * 最近一次 {@link #peek(int)} 读到的记录数和字节数
+     */
+    private int peekedRecords;
+
+    private long peekedBytes;
+
+    DiskSpool(File file, long maxBytes) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException(String.format("Create spool dir failed, dir: %s", dir));
+        }
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (channel.size() < HEADER) {
+            reset();
+        } else {
+            recover();
+        }
+    }
+
+    /**
+     * 追加一条记录并刷盘，未消费的记录超出容量时返回false
+     */
+    synchronized boolean append(byte[] record) throws IOException {
+        int size = 4 + record.length + 4;
+        if (writePos - readPos + size > maxBytes) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(record.length).put(record).putInt((int) crc.getValue());
+        buffer.flip();
+        write(buffer, writePos);
+        channel.force(false);
+        writePos += size;
+        records++;
+        return true;
+    }
+
+    /**
+     * 按顺序读取队首最多max条记录但不移除，队列为空时返回空列表
+     */
+    synchronized List<byte[]> peek(int max) throws IOException {
+        List<byte[]> batch = new ArrayList<>(Math.min(max, records));
+        long pos = readPos;
+        ByteBuffer length = ByteBuffer.allocate(4);
+        while (batch.size() < max && batch.size() < records) {
+            length.clear();
+            read(length, pos);
+            byte[] record = new byte[length.getInt(0)];
+            read(ByteBuffer.wrap(record), pos + 4);
+            batch.add(record);
+            pos += 4 + record.length + 4;
+        }
+        peekedRecords = batch.size();
+        peekedBytes = pos - readPos;
+        return batch;
+    }
+
+    /**
+     * 移除 {@link #peek(int)} 读到的记录，全部消费完后截断文件，已消费的部分足够大时压缩
+     */
+    synchronized void advance() throws IOException {
+        if (peekedRecords == 0) {
+            throw new IllegalStateException("Spool advanced without peek");
+        }
+        records -= peekedRecords;
+        readPos += peekedBytes;
+        peekedRecords = 0;
+        peekedBytes = 0;
+        if (records == 0) {
+            reset();
+            return;
+        }
+        writeHeader();
+        long consumed = readPos - HEADER;
+        if (consumed >= COMPACT_MIN_BYTES && consumed >= writePos - readPos) {
+            compact();
+        }
+    }
+
+    /**
+     * 按顺序遍历所有未消费的记录，用于重启后重建索引
+     */
+    synchronized void forEach(RecordConsumer consumer) throws IOException {
+        long pos = readPos;
+        ByteBuffer length = ByteBuffer.allocate(4);
+        for (int i = 0; i < records; i++) {
+            length.clear();
+            read(length, pos);
+            byte[] record = new byte[length.getInt(0)];
+            read(ByteBuffer.wrap(record), pos + 4);
+            consumer.accept(record);
+            pos += 4 + record.length + 4;
+        }
+    }
+
+    synchronized int records() {
+        return records;
+    }
+
+    /**
+     * 未消费的记录占用的字节数
+     */
+    synchronized long bytes() {
+        return writePos - readPos;
+    }
+
+
+    long capacity() {
+        return maxBytes;
+    }
+
+    private void reset() throws IOException {
+        channel.truncate(HEADER);
+        readPos = HEADER;
+        writePos = HEADER;
+        records = 0;
+        writeHeader();
+    }
+
+    /**
+     * 从读位置开始校验记录，丢弃末尾不完整的记录
+     */
+    private void recover() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        read(header, 0);
+        readPos = Math.max(HEADER, header.getLong(0));
+        long size = channel.size();
+        long pos = readPos;
+        ByteBuffer length = ByteBuffer.allocate(4);
+        while (pos + 8 <= size) {
+            length.clear();
+            read(length, pos);
+            int len = length.getInt(0);
+            if (len < 0 || pos + 4 + len + 4 > size) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate(len + 4);
+            read(record, pos + 4);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 0, len);
+            if ((int) crc.getValue() != record.getInt(len)) {
+                break;
+            }
+            pos += 4 + len + 4;
+            records++;
+        }
+        if (pos < size) {
+            log.warn("Spool has incomplete tail, truncate it, file: {}, size: {}, valid: {}", file, size, pos);
+            channel.truncate(pos);
+        }
+        writePos = pos;
+        if (records == 0) {
+            reset();
+        }
+        log.info("Spool recovered, file: {}, records: {}", file, records);
+    }
+
+    /**
+     * 把未消费的记录复制到临时文件，刷盘后原子地替换旧文件；替换前宕机则旧文件不变，不会丢失或重复记录
+     */
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".compact");
+        long live = writePos - readPos;
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putLong(HEADER).flip();
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            long copied = 0;
+            while (copied < live) {
+                copied += channel.transferTo(readPos + copied, live - copied, out);
+            }
+            out.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel.close();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        log.info("Spool compacted, file: {}, reclaimed: {}, records: {}", file, readPos - HEADER, records);
+        readPos = HEADER;
+        writePos = HEADER + live;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putLong(readPos).flip();
+        write(header, 0);
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException(String.format("Unexpected end of spool, file: %s, position: %d", file, position));
+            }
+            position += n;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * 记录回调
+     */
+    @FunctionalInterface
+    interface RecordConsumer {
+
+        void accept(byte[] record) throws IOException;
+    }
+}
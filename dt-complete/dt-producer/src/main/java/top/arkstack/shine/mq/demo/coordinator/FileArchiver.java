@@ -0,0 +1,50 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import top.arkstack.shine.mq.demo.dao.model.CoordinatorArchive;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 归档到本地gzip文件，每天一个文件，每行一条json
+ * <p>
+ * 每批追加为一个独立的gzip成员并刷盘，多个成员首尾相接仍是合法的gzip文件，可以直接用 zcat 读取
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public class FileArchiver implements Archiver {
+
+    private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final File dir;
+
+    public FileArchiver(File dir) {
+        this.dir = dir;
+    }
+
+    @Override
+    public synchronized void archive(List<CoordinatorArchive> records) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException(String.format("Create archive dir failed, dir: %s", dir));
+        }
+        File file = new File(dir, String.format("coordinator-archive-%s.jsonl.gz", LocalDate.now().format(DAY)));
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            GZIPOutputStream gzip = new GZIPOutputStream(out);
+            for (CoordinatorArchive record : records) {
+                gzip.write(mapper.writeValueAsBytes(record));
+                gzip.write('\n');
+            }
+            gzip.finish();
+            out.getFD().sync();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 使用 HSCAN 按页遍历存放 {@link CoordinatorEntry} 的hash，只返回写入超过 timeoutMillis 的消息
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+final class HashScanner {
+
+    private HashScanner() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> void scan(RedisTemplate<String, Object> redisTemplate, String key, long timeoutMillis, int pageSize,
+                         PagedCoordinator.PageConsumer<T> consumer) throws Exception {
+        long deadline = System.currentTimeMillis() - timeoutMillis;
+        List<String> ids = new ArrayList<>(pageSize);
+        List<T> page = new ArrayList<>(pageSize);
+        try (Cursor<Map.Entry<Object, Object>> cursor = redisTemplate.opsForHash().scan(key,
+                ScanOptions.scanOptions().count(pageSize).build())) {
+            while (cursor.hasNext()) {
+                Map.Entry<Object, Object> field = cursor.next();
+                CoordinatorEntry entry = (CoordinatorEntry) field.getValue();
+                if (entry.getTime() > deadline) {
+                    continue;
+                }
+                ids.add(field.getKey().toString());
+                page.add((T) entry.getMessage());
+                if (page.size() >= pageSize) {
+                    consumer.accept(ids, page);
+                    ids = new ArrayList<>(pageSize);
+                    page = new ArrayList<>(pageSize);
+                }
+            }
+        }
+        if (!page.isEmpty()) {
+            consumer.accept(ids, page);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import top.arkstack.shine.mq.coordinator.Coordinator;
+
+/**
+ * 状态只保存在本节点的协调者，每个节点都需要补偿自己的消息，Daemon按节点加锁
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public interface LocalCoordinator extends Coordinator {
+}
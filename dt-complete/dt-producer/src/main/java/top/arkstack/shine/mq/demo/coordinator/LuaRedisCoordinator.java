@@ -0,0 +1,210 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import top.arkstack.shine.mq.bean.EventMessage;
+import top.arkstack.shine.mq.bean.PrepareMessage;
+import top.arkstack.shine.mq.coordinator.Coordinator;
+import top.arkstack.shine.mq.demo.util.MicroBatcher;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 使用lua脚本和pipeline的redis协调者
+ * <p>
+ * prepare -> ready -> 删除 的每一步状态变更都是一个原子执行的lua脚本（如 setReady 的写ready和删prepare在一个脚本中完成）。
+ * 并发事务的状态变更由一个后台线程合并，整批使用 EVALSHA pipeline 一次往返发送，调用方等待所在批次写入完成后返回，
+ * 写入语义与默认的redisCoordinator一致。消息存放在 prefix + lua_prepare、prefix + lua_ready 两个hash中
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Slf4j
+public class LuaRedisCoordinator extends DelegatingCoordinator implements PagedCoordinator, AutoCloseable {
+
+    private static final DefaultRedisScript<Long> PUT_SCRIPT = new DefaultRedisScript<>(
+            "return redis.call('HSET', KEYS[1], ARGV[1], ARGV[2])", Long.class);
+
+    /**
+     * 写入ready消息并删除对应的prepare消息
+     */
+    private static final DefaultRedisScript<Long> READY_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('HSET', KEYS[1], ARGV[1], ARGV[2]) " +
+                    "return redis.call('HDEL', KEYS[2], ARGV[3])", Long.class);
+
+    private static final DefaultRedisScript<Long> DEL_SCRIPT = new DefaultRedisScript<>(
+            "return redis.call('HDEL', KEYS[1], ARGV[1])", Long.class);
+
+    private static final StringRedisSerializer STRING = new StringRedisSerializer();
+
+    private final GenericJackson2JsonRedisSerializer serializer = new GenericJackson2JsonRedisSerializer();
+
+    private final RedisTemplate<String, Object> redisTemplate;
+
+    private final String prepareKey;
+
+    private final String readyKey;
+
+    private final long timeoutMillis;
+
+    private final MicroBatcher<Op, Object> batcher;
+
+    /**
+     * @param delegate          默认协调者，负责投递
+     * @param connectionFactory redis连接
+     * @param prefix            redis前缀，与 shine.mq.distributed.redis-prefix 一致
+     * @param timeoutMillis     消息超时时长
+     * @param maxBatchSize      每个pipeline最多的脚本数
+     * @param windowMillis      合并窗口，0即只合并已经在排队的状态变更，不额外等待
+     */
+    public LuaRedisCoordinator(Coordinator delegate, RedisConnectionFactory connectionFactory, String prefix,
+                               long timeoutMillis, int maxBatchSize, long windowMillis) {
+        super(delegate);
+        this.redisTemplate = new RedisTemplate<>();
+        this.redisTemplate.setConnectionFactory(connectionFactory);
+        this.redisTemplate.setKeySerializer(STRING);
+        this.redisTemplate.setValueSerializer(STRING);
+        this.redisTemplate.setHashKeySerializer(STRING);
+        this.redisTemplate.setHashValueSerializer(serializer);
+        this.redisTemplate.afterPropertiesSet();
+        this.prepareKey = prefix + "lua_prepare";
+        this.readyKey = prefix + "lua_ready";
+        this.timeoutMillis = timeoutMillis;
+        this.batcher = new MicroBatcher<>("lua-redis-coordinator", maxBatchSize, windowMillis, this::execute);
+    }
+
+    @Override
+    public void setPrepare(PrepareMessage prepareMessage) {
+        batcher.submit(new Op(PUT_SCRIPT, 1, prepareKey, prepareMessage.getCheckBackId(), entry(prepareMessage)));
+    }
+
+    @Override
+    public void setReady(String msgId, String checkBackId, EventMessage message) {
+        batcher.submit(new Op(READY_SCRIPT, 2, readyKey, prepareKey, msgId, entry(message), checkBackId));
+    }
+
+    @Override
+    public void delPrepare(String checkBackId) {
+        batcher.submit(new Op(DEL_SCRIPT, 1, prepareKey, checkBackId));
+    }
+
+    @Override
+    public void delReady(String msgId) {
+        batcher.submit(new Op(DEL_SCRIPT, 1, readyKey, msgId));
+    }
+
+    /**
+     * 一次性加载全部超时的prepare消息，积压大时请使用 {@link #scanPrepare(int, PageConsumer)}
+     */
+    @Override
+    public List<PrepareMessage> getPrepare() throws Exception {
+        List<PrepareMessage> prepare = new ArrayList<>();
+        scanPrepare(1000, prepare::addAll);
+        return prepare;
+    }
+
+    /**
+     * 一次性加载全部超时的ready消息，积压大时请使用 {@link #scanReady(int, PageConsumer)}
+     */
+    @Override
+    public List<EventMessage> getReady() throws Exception {
+        List<EventMessage> ready = new ArrayList<>();
+        scanReady(1000, ready::addAll);
+        return ready;
+    }
+
+    /**
+     * 默认协调者完成投递后，prepare消息已经转交给它跟踪，这里删除自己存储的prepare消息
+     */
+    @Override
+    public void compensatePrepare(PrepareMessage message) throws Exception {
+        super.compensatePrepare(message);
+        delPrepare(message.getCheckBackId());
+    }
+
+    @Override
+    public void scanPrepare(int pageSize, PageConsumer<PrepareMessage> consumer) throws Exception {
+        HashScanner.scan(redisTemplate, prepareKey, timeoutMillis, pageSize, consumer);
+    }
+
+    @Override
+    public void scanReady(int pageSize, PageConsumer<EventMessage> consumer) throws Exception {
+        HashScanner.scan(redisTemplate, readyKey, timeoutMillis, pageSize, consumer);
+    }
+
+    private String entry(Object message) {
+        return new String(serializer.serialize(new CoordinatorEntry(System.currentTimeMillis(), message)),
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 一批脚本使用一次pipeline发送，redis重启后脚本缓存丢失（NOSCRIPT）时重新加载后重试一次
+     */
+    private List<Object> execute(List<Op> ops) {
+        try {
+            return pipeline(ops);
+        } catch (Exception e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            log.info("Lua scripts not loaded, load and retry, batch size: {}", ops.size());
+            redisTemplate.execute((RedisCallback<Object>) connection -> {
+                connection.scriptLoad(PUT_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+                connection.scriptLoad(READY_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+                connection.scriptLoad(DEL_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+                return null;
+            });
+            return pipeline(ops);
+        }
+    }
+
+    private List<Object> pipeline(List<Op> ops) {
+        return redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            ops.forEach(op -> connection.evalSha(op.script.getSha1(), ReturnType.INTEGER, op.numKeys, op.keysAndArgs));
+            return null;
+        });
+    }
+
+    private static boolean isNoScript(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        batcher.close();
+    }
+
+    /**
+     * 一次脚本调用
+     */
+    private static final class Op {
+
+        final DefaultRedisScript<Long> script;
+
+        final int numKeys;
+
+        final byte[][] keysAndArgs;
+
+        Op(DefaultRedisScript<Long> script, int numKeys, String... keysAndArgs) {
+            this.script = script;
+            this.numKeys = numKeys;
+            this.keysAndArgs = new byte[keysAndArgs.length][];
+            for (int i = 0; i < keysAndArgs.length; i++) {
+                this.keysAndArgs[i] = STRING.serialize(keysAndArgs[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import top.arkstack.shine.mq.demo.dao.CoordinatorArchiveMapper;
+import top.arkstack.shine.mq.demo.dao.model.CoordinatorArchive;
+
+import java.util.List;
+
+/**
+ * 归档到数据库 coordinator_archive 表（压缩行格式），一批一次插入
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public class MysqlArchiver implements Archiver {
+
+    private final CoordinatorArchiveMapper mapper;
+
+    public MysqlArchiver(CoordinatorArchiveMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    @Override
+    public void archive(List<CoordinatorArchive> records) {
+        mapper.insertBatch(records);
+    }
+}
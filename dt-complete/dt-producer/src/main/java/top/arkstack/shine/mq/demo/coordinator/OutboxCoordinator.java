@@ -0,0 +1,51 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import top.arkstack.shine.mq.bean.TransferBean;
+import top.arkstack.shine.mq.demo.dao.OutboxMessageMapper;
+import top.arkstack.shine.mq.demo.dao.model.OutboxMessage;
+
+/**
+ * 发件箱协调者
+ * <p>
+ * 消息作为 outbox_message 表的一行，和业务数据在同一个本地事务中写入：事务提交则消息一定存在，回滚则消息一定不存在，
+ * 不需要单独写一次协调者，也不需要prepare消息和回查。消息由 {@link top.arkstack.shine.mq.demo.publisher.OutboxRelay} 发送，
+ * 发送前一直保留在表中，因此不使用 @DistributedTrans
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Component
+public class OutboxCoordinator {
+
+    @Autowired
+    private OutboxMessageMapper mapper;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    /**
+     * 写入一条待发送的消息，必须在业务的本地事务中调用
+     *
+     * @param msgId      消息id，这里使用回查id
+     * @param bizId      业务id
+     * @param exchange   exchange
+     * @param routingKey routingKey
+     * @param data       消息内容，与 @DistributedTrans 一样使用TransferBean包装
+     */
+    @Transactional(propagation = Propagation.MANDATORY, rollbackFor = Exception.class)
+    public void save(String msgId, String bizId, String exchange, String routingKey, TransferBean data) {
+        String payload;
+        try {
+            payload = objectMapper.writeValueAsString(data);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(String.format("Serialize outbox message failed, msgId: %s", msgId), e);
+        }
+        mapper.insert(new OutboxMessage(null, msgId, bizId, exchange, routingKey, payload, 0, null));
+    }
+}
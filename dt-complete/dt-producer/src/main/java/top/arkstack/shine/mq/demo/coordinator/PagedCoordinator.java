@@ -0,0 +1,52 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import top.arkstack.shine.mq.bean.EventMessage;
+import top.arkstack.shine.mq.bean.PrepareMessage;
+import top.arkstack.shine.mq.coordinator.Coordinator;
+
+import java.util.List;
+
+/**
+ * 支持分页遍历的协调者
+ * <p>
+ * getPrepare()/getReady() 会把整个积压一次性加载到内存，积压很大时（如下游长时间不可用）会导致Full GC，
+ * 分页遍历每次只持有一页，内存占用与积压大小无关
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public interface PagedCoordinator extends Coordinator {
+
+    /**
+     * 分页遍历超时的prepare消息
+     *
+     * @param pageSize 每页大小（近似值，redis SCAN 的 COUNT 语义）
+     * @param consumer 每页回调一次，回调中可以删除当前页的消息
+     */
+    void scanPrepare(int pageSize, PageConsumer<PrepareMessage> consumer) throws Exception;
+
+    /**
+     * 分页遍历超时的ready消息
+     *
+     * @param pageSize 每页大小（近似值，redis SCAN 的 COUNT 语义）
+     * @param consumer 每页回调一次，回调中可以删除当前页的消息
+     */
+    void scanReady(int pageSize, PageConsumer<EventMessage> consumer) throws Exception;
+
+    /**
+     * 分页回调
+     */
+    @FunctionalInterface
+    interface PageConsumer<T> {
+
+        void accept(List<T> page) throws Exception;
+
+        /**
+         * 带消息id的一页，ids与page按下标一一对应（prepare为checkBackId，ready为msgId）。
+         * 遍历时已经拿到id的协调者调用这个方法，默认忽略id，需要按id处理的回调（如补偿去重）覆盖它
+         */
+        default void accept(List<String> ids, List<T> page) throws Exception {
+            accept(page);
+        }
+    }
+}
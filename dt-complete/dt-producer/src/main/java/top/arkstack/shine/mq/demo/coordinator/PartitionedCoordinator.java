@@ -0,0 +1,47 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import top.arkstack.shine.mq.bean.EventMessage;
+import top.arkstack.shine.mq.bean.PrepareMessage;
+
+import java.util.Set;
+
+/**
+ * 分区存储的协调者
+ * <p>
+ * prepare消息按 bizId + 槽位 分区，ready消息按槽位分区，
+ * 多个节点各自对分区加锁，同时补偿不同的分区，补偿能力随节点数增长
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public interface PartitionedCoordinator extends PagedCoordinator {
+
+    /**
+     * 槽位数
+     */
+    int partitions();
+
+    /**
+     * 存在prepare消息的bizId
+     */
+    Set<String> prepareBizIds();
+
+    /**
+     * 分页遍历一个分区中超时的prepare消息
+     *
+     * @param bizId     业务id
+     * @param partition 槽位 0 ~ partitions() - 1
+     * @param pageSize  每页大小
+     * @param consumer  每页回调一次
+     */
+    void scanPrepare(String bizId, int partition, int pageSize, PageConsumer<PrepareMessage> consumer) throws Exception;
+
+    /**
+     * 分页遍历一个分区中超时的ready消息
+     *
+     * @param partition 槽位 0 ~ partitions() - 1
+     * @param pageSize  每页大小
+     * @param consumer  每页回调一次
+     */
+    void scanReady(int partition, int pageSize, PageConsumer<EventMessage> consumer) throws Exception;
+}
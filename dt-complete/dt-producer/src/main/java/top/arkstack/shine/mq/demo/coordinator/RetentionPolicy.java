@@ -0,0 +1,69 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import lombok.Data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 协调者消息的保留策略
+ * <p>
+ * 写入超过 maxAgeMillis，或已经补偿（回查）maxAttempts 次仍未完成的消息被归档后移除，
+ * 协调者中的消息数因此有上限，Daemon每轮的执行时间和redis内存可预期。可以按bizId单独配置，0即不限制
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Data
+public class RetentionPolicy {
+
+    private boolean enabled;
+
+    private long maxAgeMillis = 7 * 24 * 3600 * 1000L;
+
+    private int maxAttempts = 50;
+
+    /**
+     * 归档方式，file 本地压缩文件，db 数据库 coordinator_archive 表
+     */
+    private String archive = "file";
+
+    private String archiveDir = "./data/archive";
+
+    /**
+     * bizId -> 单独的策略，没有配置的项使用全局配置
+     */
+    private Map<String, Rule> biz = new HashMap<>();
+
+    /**
+     * 取得bizId的策略，bizId未知（如ready消息中没有bizId）时使用全局配置
+     */
+    public Rule rule(String bizId) {
+        Rule rule = bizId == null ? null : biz.get(bizId);
+        Rule merged = new Rule();
+        merged.setMaxAgeMillis(rule == null || rule.getMaxAgeMillis() == null ? maxAgeMillis : rule.getMaxAgeMillis());
+        merged.setMaxAttempts(rule == null || rule.getMaxAttempts() == null ? maxAttempts : rule.getMaxAttempts());
+        return merged;
+    }
+
+    @Data
+    public static class Rule {
+
+        private Long maxAgeMillis;
+
+        private Integer maxAttempts;
+
+        /**
+         * 返回移除的原因，不需要移除返回null
+         */
+        public String expired(long age, long attempts) {
+            if (maxAgeMillis > 0 && age > maxAgeMillis) {
+                return "max-age";
+            }
+            if (maxAttempts > 0 && attempts >= maxAttempts) {
+                return "max-attempts";
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,688 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import top.arkstack.shine.mq.bean.EventMessage;
+import top.arkstack.shine.mq.bean.PrepareMessage;
+import top.arkstack.shine.mq.coordinator.Coordinator;
+import top.arkstack.shine.mq.demo.dao.model.CoordinatorArchive;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * 支持分页遍历的redis协调者
+ * <p>
+ * prepare消息存放在 prefix + scan_prepare_{bizId}_{slot} 中，ready消息存放在 prefix + scan_ready_{slot} 中，
+ * slot由checkBackId/msgId的hash取模得到，存在prepare消息的bizId记录在 prefix + scan_prepare_biz 中，
+ * checkBackId对应的bizId记录在 prefix + scan_prepare_index_{slot} 中，删除prepare消息（只有checkBackId）时
+ * 先查出bizId，只在它所在的分区中删除一次。遍历时使用 HSCAN 按页读取，投递仍然交给默认的协调者
+ * <p>
+ * 集群模式下key使用hash tag：prepare为 prefix + scan_prepare_{bizId_slot}，ready为 prefix + scan_ready_{slot}，
+ * 索引为 prefix + scan_prepare_index_{slot}，同一个bizId和槽位的key落在redis cluster的同一个slot上，
+ * Daemon按分区遍历时每次只访问一个slot。索引中没有记录时（如迁移过来的旧消息）才在每个bizId的同一槽位中删除，
+ * 脚本不能访问声明之外、位于其他slot的key，集群模式下改为pipeline逐个删除
+ * <p>
+ * 配置了保留策略时，每条消息真正被补偿的次数（ready重新投递、prepare回查后仍未处理完，见 {@link AttemptCountingCoordinator}）
+ * 记录在同名的 _attempts hash 中，被去重跳过的遍历不计数；超过保留期限或补偿次数上限的消息先归档，再从协调者中移除
+ * <p>
+ * 槽位数和是否集群模式记录在 prefix + scan_layout 中，启动时与配置不一致（或存在旧版本的 scan_prepare、scan_ready）时，
+ * 后台把旧布局中的消息逐条搬到新布局，搬完后更新记录；迁移期间的删除同时作用于旧布局，避免已经删除的消息被搬过来。
+ * 修改槽位数时所有节点需要使用相同的配置
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Slf4j
+public class ScanRedisCoordinator extends DelegatingCoordinator
+        implements PartitionedCoordinator, BatchCoordinator, AttemptCountingCoordinator {
+
+    /**
+     * key名（不含前缀），{@link CompactRedisCoordinator} 迁移时按同样的布局读取
+     */
+    static final String PREPARE_KEY = "scan_prepare_";
+
+    static final String BIZ_KEY = "scan_prepare_biz";
+
+    static final String READY_KEY = "scan_ready_";
+
+    static final String LAYOUT_KEY = "scan_layout";
+
+    static final String INDEX_KEY = "scan_prepare_index_";
+
+    /**
+     * 从多个hash中删除同一个id（如prepare消息、它的补偿次数和索引），所有key都通过KEYS声明，在redis中一次执行
+     */
+    private static final DefaultRedisScript<Long> DEL_SCRIPT = new DefaultRedisScript<>(
+            "local n = 0 " +
+                    "for _, key in ipairs(KEYS) do n = n + redis.call('HDEL', key, ARGV[1]) end " +
+                    "return n", Long.class);
+
+    /**
+     * 旧布局中的消息仍然存在时才搬到新布局，新布局中已有则不覆盖，补偿次数一起搬过去
+     */
+    private static final DefaultRedisScript<Long> MOVE_SCRIPT = new DefaultRedisScript<>(
+            "local v = redis.call('HGET', KEYS[1], ARGV[1]) " +
+                    "if not v then return 0 end " +
+                    "redis.call('HSETNX', KEYS[2], ARGV[1], v) " +
+                    "redis.call('HDEL', KEYS[1], ARGV[1]) " +
+                    "local a = redis.call('HGET', KEYS[3], ARGV[1]) " +
+                    "if a then " +
+                    "redis.call('HSETNX', KEYS[4], ARGV[1], a) " +
+                    "redis.call('HDEL', KEYS[3], ARGV[1]) " +
+                    "end " +
+                    "return 1", Long.class);
+
+    /**
+     * 消息仍在协调者中时才计数，避免已经删除的消息留下补偿次数；两个key使用同一个hash tag
+     */
+    private static final DefaultRedisScript<Long> ATTEMPT_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('HEXISTS', KEYS[1], ARGV[1]) == 0 then return 0 end " +
+                    "return redis.call('HINCRBY', KEYS[2], ARGV[1], 1)", Long.class);
+
+    private final RedisTemplate<String, Object> redisTemplate;
+
+    /**
+     * 读写补偿次数
+     */
+    private final StringRedisTemplate attemptsTemplate;
+
+    private final GenericJackson2JsonRedisSerializer serializer = new GenericJackson2JsonRedisSerializer();
+
+    private final String prepareKey;
+
+    private final String bizKey;
+
+    private final String readyKey;
+
+    /**
+     * checkBackId -> bizId 索引
+     */
+    private final String indexKey;
+
+    /**
+     * 记录当前布局（槽位数、是否集群模式）
+     */
+    private final String layoutKey;
+
+    /**
+     * 旧版本（不分区）的prepare、ready hash
+     */
+    private final String legacyPrepareKey;
+
+    private final String legacyReadyKey;
+
+    private final int partitions;
+
+    /**
+     * 是否使用redis cluster的key布局
+     */
+    private final boolean cluster;
+
+    /**
+     * 正在迁移的旧布局，null即没有需要迁移的旧分区
+     */
+    private volatile Layout previous;
+
+    /**
+     * 是否正在迁移旧版本的hash
+     */
+    private volatile boolean legacy;
+
+    /**
+     * 保留策略，null即不限制
+     */
+    private final RetentionPolicy retention;
+
+    private final Archiver archiver;
+
+    private final BizIdResolver bizIdResolver = new BizIdResolver();
+
+    /**
+     * 写入超过该时长的消息才会被遍历出来进行补偿，避免补偿正在进行中的事务
+     */
+    private final long timeoutMillis;
+
+    /**
+     * @param delegate          默认协调者，负责投递
+     * @param connectionFactory redis连接
+     * @param prefix            redis前缀，与 shine.mq.distributed.redis-prefix 一致
+     * @param partitions        槽位数
+     * @param timeoutMillis     消息超时时长
+     * @param cluster           是否使用redis cluster的key布局
+     * @param retention         保留策略，null即不限制
+     * @param archiver          归档，配置了保留策略时必须提供
+     */
+    public ScanRedisCoordinator(Coordinator delegate, RedisConnectionFactory connectionFactory, String prefix,
+                                int partitions, long timeoutMillis, boolean cluster, RetentionPolicy retention,
+                                Archiver archiver) {
+        super(delegate);
+        if (partitions < 1) {
+            throw new IllegalArgumentException(String.format("Partitions can't be less than 1, partitions: %d", partitions));
+        }
+        this.redisTemplate = new RedisTemplate<>();
+        this.redisTemplate.setConnectionFactory(connectionFactory);
+        this.redisTemplate.setKeySerializer(new StringRedisSerializer());
+        this.redisTemplate.setValueSerializer(new StringRedisSerializer());
+        this.redisTemplate.setHashKeySerializer(new StringRedisSerializer());
+        this.redisTemplate.setHashValueSerializer(serializer);
+        this.redisTemplate.afterPropertiesSet();
+        this.attemptsTemplate = new StringRedisTemplate(connectionFactory);
+        this.prepareKey = prefix + PREPARE_KEY;
+        this.bizKey = prefix + BIZ_KEY;
+        this.readyKey = prefix + READY_KEY;
+        this.layoutKey = prefix + LAYOUT_KEY;
+        this.indexKey = prefix + INDEX_KEY;
+        this.legacyPrepareKey = prefix + "scan_prepare";
+        this.legacyReadyKey = prefix + "scan_ready";
+        this.partitions = partitions;
+        this.timeoutMillis = timeoutMillis;
+        this.cluster = cluster;
+        if (retention != null && archiver == null) {
+            throw new IllegalArgumentException("Archiver is required when retention is enabled");
+        }
+        this.retention = retention;
+        this.archiver = archiver;
+        checkLayout();
+    }
+
+    /**
+     * bizId、消息和索引使用pipeline一次往返写入
+     */
+    @Override
+    public void setPrepare(PrepareMessage prepareMessage) {
+        setPrepare(Collections.singletonList(prepareMessage));
+    }
+
+    /**
+     * 使用pipeline批量写入，一批只需要一次往返
+     */
+    @Override
+    public void setPrepare(List<PrepareMessage> prepareMessages) {
+        long now = System.currentTimeMillis();
+        redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                RedisOperations<String, Object> ops = (RedisOperations<String, Object>) operations;
+                prepareMessages.stream().map(PrepareMessage::getBizId).distinct()
+                        .forEach(bizId -> ops.opsForSet().add(bizKey, bizId));
+                prepareMessages.forEach(p -> {
+                    int slot = slot(p.getCheckBackId());
+                    ops.opsForHash().put(prepareKey(p.getBizId(), slot), p.getCheckBackId(), new CoordinatorEntry(now, p));
+                    ops.opsForHash().put(indexKey(slot), p.getCheckBackId(), p.getBizId());
+                });
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void setReady(String msgId, String checkBackId, EventMessage message) {
+        redisTemplate.opsForHash().put(readyKey(slot(msgId)), msgId, new CoordinatorEntry(System.currentTimeMillis(), message));
+        delPrepare(checkBackId);
+    }
+
+    /**
+     * 通过索引找到bizId，只在它所在的分区中删除；索引中没有记录或正在迁移时，在每个bizId的同一槽位中删除
+     */
+    @Override
+    public void delPrepare(String checkBackId) {
+        int slot = slot(checkBackId);
+        Layout old = previous;
+        Object bizId = old == null && !legacy ? redisTemplate.opsForHash().get(indexKey(slot), checkBackId) : null;
+        if (bizId != null) {
+            String key = prepareKey(bizId.toString(), slot);
+            delete(Arrays.asList(key, attemptsKey(key), indexKey(slot)), checkBackId);
+            return;
+        }
+        List<String> keys = new ArrayList<>();
+        for (String biz : prepareBizIds()) {
+            keys.add(prepareKey(biz, slot));
+            if (old != null) {
+                keys.add(prepareKey(old.cluster, biz, slot(checkBackId, old.partitions)));
+            }
+        }
+        if (legacy) {
+            keys.add(legacyPrepareKey);
+        }
+        List<String> all = withAttempts(keys);
+        all.add(indexKey(slot));
+        delete(all, checkBackId);
+    }
+
+    @Override
+    public void delReady(String msgId) {
+        List<String> keys = new ArrayList<>();
+        keys.add(readyKey(slot(msgId)));
+        Layout old = previous;
+        if (old != null) {
+            keys.add(readyKey(old.cluster, slot(msgId, old.partitions)));
+        }
+        if (legacy) {
+            keys.add(legacyReadyKey);
+        }
+        delete(withAttempts(keys), msgId);
+    }
+
+    /**
+     * 各个hash及其补偿次数
+     */
+    private static List<String> withAttempts(List<String> keys) {
+        List<String> all = new ArrayList<>(keys.size() * 2 + 1);
+        keys.forEach(key -> {
+            all.add(key);
+            all.add(attemptsKey(key));
+        });
+        return all;
+    }
+
+    /**
+     * 从各个hash中删除同一个id，单机模式下在一个脚本中删除，集群模式下各个key不在同一个slot上，改为pipeline逐个删除
+     */
+    private void delete(List<String> all, String id) {
+        if (!cluster) {
+            redisTemplate.execute(DEL_SCRIPT, all, id);
+            return;
+        }
+        redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                RedisOperations<String, Object> ops = (RedisOperations<String, Object>) operations;
+                all.forEach(key -> ops.opsForHash().delete(key, id));
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 按槽位分组，每个槽位一次HDEL，使用pipeline一次往返
+     */
+    @Override
+    public void delReady(List<String> msgIds) {
+        if (previous != null || legacy) {
+            msgIds.forEach(this::delReady);
+            return;
+        }
+        Map<Integer, List<String>> bySlot = msgIds.stream().collect(Collectors.groupingBy(this::slot));
+        redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) throws DataAccessException {
+                RedisOperations<String, Object> ops = (RedisOperations<String, Object>) operations;
+                bySlot.forEach((slot, ids) -> {
+                    ops.opsForHash().delete(readyKey(slot), ids.toArray());
+                    if (retention != null) {
+                        ops.opsForHash().delete(attemptsKey(readyKey(slot)), ids.toArray());
+                    }
+                });
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 一次性加载全部超时的prepare消息，积压大时请使用 {@link #scanPrepare(int, PageConsumer)}
+     */
+    @Override
+    public List<PrepareMessage> getPrepare() throws Exception {
+        List<PrepareMessage> prepare = new ArrayList<>();
+        scanPrepare(1000, prepare::addAll);
+        return prepare;
+    }
+
+    /**
+     * 一次性加载全部超时的ready消息，积压大时请使用 {@link #scanReady(int, PageConsumer)}
+     */
+    @Override
+    public List<EventMessage> getReady() throws Exception {
+        List<EventMessage> ready = new ArrayList<>();
+        scanReady(1000, ready::addAll);
+        return ready;
+    }
+
+    /**
+     * 默认协调者完成投递后，prepare消息已经转交给它跟踪，这里删除自己存储的prepare消息
+     */
+    @Override
+    public void compensatePrepare(PrepareMessage message) throws Exception {
+        super.compensatePrepare(message);
+        int slot = slot(message.getCheckBackId());
+        String key = prepareKey(message.getBizId(), slot);
+        delete(Arrays.asList(key, attemptsKey(key), indexKey(slot)), message.getCheckBackId());
+    }
+
+    @Override
+    public void readyAttempted(String msgId) {
+        if (retention != null) {
+            attempted(readyKey(slot(msgId)), msgId);
+        }
+    }
+
+    @Override
+    public void prepareAttempted(PrepareMessage message) {
+        if (retention != null) {
+            attempted(prepareKey(message.getBizId(), slot(message.getCheckBackId())), message.getCheckBackId());
+        }
+    }
+
+    private void attempted(String key, String id) {
+        attemptsTemplate.execute(ATTEMPT_SCRIPT, Arrays.asList(key, attemptsKey(key)), id);
+    }
+
+    @Override
+    public void scanPrepare(int pageSize, PageConsumer<PrepareMessage> consumer) throws Exception {
+        for (String bizId : prepareBizIds()) {
+            for (int partition = 0; partition < partitions; partition++) {
+                scanPrepare(bizId, partition, pageSize, consumer);
+            }
+        }
+    }
+
+    @Override
+    public void scanReady(int pageSize, PageConsumer<EventMessage> consumer) throws Exception {
+        for (int partition = 0; partition < partitions; partition++) {
+            scanReady(partition, pageSize, consumer);
+        }
+    }
+
+    @Override
+    public int partitions() {
+        return partitions;
+    }
+
+    @Override
+    public Set<String> prepareBizIds() {
+        Set<Object> members = redisTemplate.opsForSet().members(bizKey);
+        return members == null ? Collections.emptySet() : members.stream().map(String::valueOf).collect(Collectors.toSet());
+    }
+
+    @Override
+    public void scanPrepare(String bizId, int partition, int pageSize, PageConsumer<PrepareMessage> consumer) throws Exception {
+        scan(prepareKey(bizId, partition), "prepare", bizId, pageSize, consumer);
+    }
+
+    @Override
+    public void scanReady(int partition, int pageSize, PageConsumer<EventMessage> consumer) throws Exception {
+        scan(readyKey(partition), "ready", null, pageSize, consumer);
+    }
+
+    /**
+     * 没有保留策略时直接分页遍历，否则每页先按保留策略移除过期的消息，剩下的交给consumer，真正补偿后再计数
+     */
+    private <T> void scan(String key, String type, String bizId, int pageSize, PageConsumer<T> consumer) throws Exception {
+        if (retention == null) {
+            HashScanner.scan(redisTemplate, key, timeoutMillis, pageSize, consumer);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long deadline = now - timeoutMillis;
+        List<Map.Entry<Object, Object>> page = new ArrayList<>(pageSize);
+        try (Cursor<Map.Entry<Object, Object>> cursor = redisTemplate.opsForHash().scan(key,
+                ScanOptions.scanOptions().count(pageSize).build())) {
+            while (cursor.hasNext()) {
+                Map.Entry<Object, Object> entry = cursor.next();
+                if (((CoordinatorEntry) entry.getValue()).getTime() > deadline) {
+                    continue;
+                }
+                page.add(entry);
+                if (page.size() >= pageSize) {
+                    retain(key, type, bizId, now, page, consumer);
+                    page = new ArrayList<>(pageSize);
+                }
+            }
+        }
+        if (!page.isEmpty()) {
+            retain(key, type, bizId, now, page, consumer);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> void retain(String key, String type, String bizId, long now, List<Map.Entry<Object, Object>> page,
+                            PageConsumer<T> consumer) throws Exception {
+        String attemptsKey = attemptsKey(key);
+        List<Object> ids = page.stream().map(Map.Entry::getKey).collect(Collectors.toList());
+        List<Object> attempts = attemptsTemplate.opsForHash().multiGet(attemptsKey, ids);
+        List<T> live = new ArrayList<>(page.size());
+        List<String> liveIds = new ArrayList<>(page.size());
+        List<CoordinatorArchive> expired = new ArrayList<>();
+        for (int i = 0; i < page.size(); i++) {
+            String id = ids.get(i).toString();
+            CoordinatorEntry entry = (CoordinatorEntry) page.get(i).getValue();
+            Object attempt = attempts == null ? null : attempts.get(i);
+            long count = attempt == null ? 0 : Long.parseLong(attempt.toString());
+            String biz = bizId != null ? bizId : bizIdResolver.bizId(entry.getMessage());
+            String reason = retention.rule(biz).expired(now - entry.getTime(), count);
+            if (reason == null) {
+                live.add((T) entry.getMessage());
+                liveIds.add(id);
+            } else {
+                expired.add(new CoordinatorArchive(type, key, id, biz, entry.getTime(), (int) count, reason,
+                        new String(serializer.serialize(entry.getMessage()), StandardCharsets.UTF_8)));
+            }
+        }
+        if (!expired.isEmpty()) {
+            archive(key, attemptsKey, expired);
+        }
+        if (!live.isEmpty()) {
+            consumer.accept(liveIds, live);
+        }
+    }
+
+    /**
+     * 归档成功后才移除，归档失败的消息保留到下一轮
+     */
+    private void archive(String key, String attemptsKey, List<CoordinatorArchive> expired) {
+        try {
+            archiver.archive(expired);
+        } catch (Exception e) {
+            log.error("Archive coordinator messages error, key: {}, count: {}", key, expired.size(), e);
+            return;
+        }
+        Object[] ids = expired.stream().map(CoordinatorArchive::getMsgId).toArray();
+        redisTemplate.opsForHash().delete(key, ids);
+        attemptsTemplate.opsForHash().delete(attemptsKey, ids);
+        expired.stream().filter(a -> "prepare".equals(a.getType()))
+                .collect(Collectors.groupingBy(a -> slot(a.getMsgId())))
+                .forEach((slot, prepare) -> redisTemplate.opsForHash().delete(indexKey(slot),
+                        prepare.stream().map(CoordinatorArchive::getMsgId).toArray()));
+        log.info("Coordinator messages archived and removed, key: {}, count: {}", key, expired.size());
+    }
+
+    private int slot(String id) {
+        return slot(id, partitions);
+    }
+
+    static int slot(String id, int partitions) {
+        return Math.floorMod(id.hashCode(), partitions);
+    }
+
+    private String prepareKey(String bizId, int slot) {
+        return prepareKey(cluster, bizId, slot);
+    }
+
+    private String prepareKey(boolean cluster, String bizId, int slot) {
+        return prepareKey(prepareKey, cluster, bizId, slot);
+    }
+
+    private String readyKey(int slot) {
+        return readyKey(cluster, slot);
+    }
+
+    private String indexKey(int slot) {
+        return indexKey(indexKey, cluster, slot);
+    }
+
+    private String readyKey(boolean cluster, int slot) {
+        return readyKey(readyKey, cluster, slot);
+    }
+
+    /**
+     * @param base prefix + {@link #PREPARE_KEY}
+     */
+    static String prepareKey(String base, boolean cluster, String bizId, int slot) {
+        return cluster ? base + "{" + bizId + "_" + slot + "}" : base + bizId + "_" + slot;
+    }
+
+    /**
+     * @param base prefix + {@link #READY_KEY}
+     */
+    static String readyKey(String base, boolean cluster, int slot) {
+        return cluster ? base + "{" + slot + "}" : base + slot;
+    }
+
+    /**
+     * @param base prefix + {@link #INDEX_KEY}
+     */
+    static String indexKey(String base, boolean cluster, int slot) {
+        return cluster ? base + "{" + slot + "}" : base + slot;
+    }
+
+    /**
+     * 与记录的布局比较，不一致或存在旧版本的hash时在后台迁移
+     */
+    private void checkLayout() {
+        Map<Object, Object> stored = attemptsTemplate.opsForHash().entries(layoutKey);
+        Layout current = new Layout(partitions, cluster);
+        if (stored == null || stored.isEmpty()) {
+            saveLayout();
+        } else {
+            Layout old = new Layout(Integer.parseInt(String.valueOf(stored.get("partitions"))),
+                    Boolean.parseBoolean(String.valueOf(stored.get("cluster"))));
+            if (!old.equals(current)) {
+                previous = old;
+            }
+        }
+        legacy = Boolean.TRUE.equals(redisTemplate.hasKey(legacyPrepareKey))
+                || Boolean.TRUE.equals(redisTemplate.hasKey(legacyReadyKey));
+        if (previous == null && !legacy) {
+            return;
+        }
+        log.warn("Scan coordinator layout changed, migrate in background, from: {}, to: {}, legacy: {}",
+                previous, current, legacy);
+        Thread migration = new Thread(this::migrate, "scan-coordinator-migration");
+        migration.setDaemon(true);
+        migration.start();
+    }
+
+    private void saveLayout() {
+        Map<String, String> layout = new HashMap<>(4);
+        layout.put("partitions", String.valueOf(partitions));
+        layout.put("cluster", String.valueOf(cluster));
+        attemptsTemplate.opsForHash().putAll(layoutKey, layout);
+    }
+
+    /**
+     * 逐条把旧布局中的消息搬到新布局，全部搬完后才更新记录的布局，失败时保留旧布局，下次启动继续
+     */
+    private void migrate() {
+        try {
+            long moved = 0;
+            if (legacy) {
+                moved += migrate(legacyPrepareKey, true);
+                moved += migrate(legacyReadyKey, false);
+            }
+            Layout old = previous;
+            if (old != null) {
+                for (String bizId : prepareBizIds()) {
+                    for (int slot = 0; slot < old.partitions; slot++) {
+                        moved += migrate(prepareKey(old.cluster, bizId, slot), true);
+                    }
+                }
+                for (int slot = 0; slot < old.partitions; slot++) {
+                    moved += migrate(readyKey(old.cluster, slot), false);
+                }
+            }
+            saveLayout();
+            previous = null;
+            legacy = false;
+            log.info("Scan coordinator migration finished, partitions: {}, cluster: {}, moved: {}", partitions, cluster, moved);
+        } catch (Exception e) {
+            log.error("Scan coordinator migration error, retry on next start", e);
+        }
+    }
+
+    private long migrate(String source, boolean prepare) {
+        long moved = 0;
+        try (Cursor<Map.Entry<Object, Object>> cursor = redisTemplate.opsForHash().scan(source,
+                ScanOptions.scanOptions().count(1000).build())) {
+            while (cursor.hasNext()) {
+                Map.Entry<Object, Object> entry = cursor.next();
+                String id = entry.getKey().toString();
+                String target;
+                if (prepare) {
+                    String bizId = ((PrepareMessage) ((CoordinatorEntry) entry.getValue()).getMessage()).getBizId();
+                    redisTemplate.opsForSet().add(bizKey, bizId);
+                    redisTemplate.opsForHash().put(indexKey(slot(id)), id, bizId);
+                    target = prepareKey(bizId, slot(id));
+                } else {
+                    target = readyKey(slot(id));
+                }
+                if (!target.equals(source) && move(source, target, id, entry.getValue())) {
+                    moved++;
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Close scan cursor error, key: %s", source), e);
+        }
+        return moved;
+    }
+
+    /**
+     * 单机模式下在一个脚本中搬运；集群模式下两个key不在同一个slot上，先写入新布局再删除旧布局，最坏情况下重复补偿一次
+     */
+    private boolean move(String source, String target, String id, Object value) {
+        if (!cluster) {
+            Long moved = redisTemplate.execute(MOVE_SCRIPT,
+                    Arrays.asList(source, target, attemptsKey(source), attemptsKey(target)), id);
+            return moved != null && moved > 0;
+        }
+        redisTemplate.opsForHash().putIfAbsent(target, id, value);
+        Object attempts = attemptsTemplate.opsForHash().get(attemptsKey(source), id);
+        if (attempts != null) {
+            attemptsTemplate.opsForHash().putIfAbsent(attemptsKey(target), id, attempts.toString());
+            attemptsTemplate.opsForHash().delete(attemptsKey(source), id);
+        }
+        return redisTemplate.opsForHash().delete(source, id) > 0;
+    }
+
+    /**
+     * 补偿次数，与消息所在的hash使用同一个hash tag
+     */
+    static String attemptsKey(String key) {
+        return key + "_attempts";
+    }
+
+    /**
+     * 分区布局
+     */
+    @Data
+    @AllArgsConstructor
+    private static class Layout {
+
+        private final int partitions;
+
+        private final boolean cluster;
+    }
+}
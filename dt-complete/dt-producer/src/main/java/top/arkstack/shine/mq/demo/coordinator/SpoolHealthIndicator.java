@@ -0,0 +1,54 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+
+/**
+ * 本地队列的健康检查和指标
+ * <p>
+ * 占用比例超过 highWatermark 时健康状态为 OUT_OF_SERVICE，提示redis长时间不可用，队列即将写满
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public class SpoolHealthIndicator extends AbstractHealthIndicator implements MeterBinder {
+
+    private final SpoolingCoordinator coordinator;
+
+    private final double highWatermark;
+
+    public SpoolHealthIndicator(SpoolingCoordinator coordinator, double highWatermark) {
+        this.coordinator = coordinator;
+        this.highWatermark = highWatermark;
+    }
+
+    @Override
+    protected void doHealthCheck(Health.Builder builder) {
+        double fillRatio = coordinator.getSpoolFillRatio();
+        (fillRatio < highWatermark ? builder.up() : builder.outOfService())
+                .withDetail("records", coordinator.getSpoolRecords())
+                .withDetail("pendingIds", coordinator.getPendingIds())
+                .withDetail("bytes", coordinator.getSpoolBytes())
+                .withDetail("capacity", coordinator.getSpoolCapacity())
+                .withDetail("fillRatio", fillRatio)
+                .withDetail("budgetExceeded", coordinator.getBudgetExceeded());
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("coordinator.spool.records", coordinator, SpoolingCoordinator::getSpoolRecords)
+                .description("本地队列中等待写回的状态变更数").register(registry);
+        Gauge.builder("coordinator.spool.bytes", coordinator, SpoolingCoordinator::getSpoolBytes)
+                .baseUnit("bytes").register(registry);
+        Gauge.builder("coordinator.spool.fill.ratio", coordinator, SpoolingCoordinator::getSpoolFillRatio)
+                .register(registry);
+        FunctionCounter.builder("coordinator.spool.budget.exceeded", coordinator, SpoolingCoordinator::getBudgetExceeded)
+                .description("prepare写入超时的次数").register(registry);
+        FunctionCounter.builder("coordinator.spool.spooled", coordinator, SpoolingCoordinator::getSpooled)
+                .description("写入本地队列的状态变更数").register(registry);
+    }
+}
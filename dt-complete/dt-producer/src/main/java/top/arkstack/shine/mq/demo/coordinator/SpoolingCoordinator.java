@@ -0,0 +1,514 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import top.arkstack.shine.mq.bean.EventMessage;
+import top.arkstack.shine.mq.bean.PrepareMessage;
+import top.arkstack.shine.mq.coordinator.Coordinator;
+import top.arkstack.shine.mq.demo.util.ConfirmBatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 带写入时限和本地缓冲的协调者
+ * <p>
+ * setPrepare 在业务事务中执行，redis卡顿时会拖住整个事务。这里给prepare写入一个时限，超时或redis连接失败后写入本地磁盘队列并立即返回，
+ * 由后台线程按顺序写回被委托的协调者。队列中还有某条消息的变更时，该消息之后的变更也进入队列排在后面，保证同一条消息的变更顺序；
+ * 其他消息不受影响，新的prepare仍然先在时限内写入被委托的协调者，redis恢复后不必等队列写回完。队列写满后直接抛出异常。
+ * <p>
+ * 后台线程每次读取一批变更，连续的prepare写入和ready删除合并成一次批量写入（pipeline），失败后整批原样重试，写入是幂等的。
+ * <p>
+ * 写入线程池没有等待队列，线程都在写入时由调用线程自己执行（不受时限约束），写入不会因为排队而超时进入本地队列；
+ * 其他异常（如命令错误）直接抛给调用方，不进入本地队列。
+ * <p>
+ * 超时的写入可能仍在执行并在之后成功，队列中的同一条prepare会再写一次，写入是幂等的；
+ * 极端情况下它晚于队列中后续的删除落地，残留的prepare由Daemon回查处理。
+ * 消息最终都写入被委托的协调者，由Daemon补偿被委托的协调者，这里不再重复提供待补偿的消息。
+ * <p>
+ * broker的ack在确认线程中只入队，由 {@link ConfirmBatcher} 合并后一次批量删除ready消息（delReady(List)），
+ * 不在每次确认时单独访问redis；nack不改变状态，ready消息留给Daemon补偿
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Slf4j
+public class SpoolingCoordinator extends DelegatingCoordinator
+        implements BatchCoordinator, WrappingCoordinator, AutoCloseable {
+
+    private static final int SET_PREPARE = 1;
+
+    private static final int SET_READY = 2;
+
+    private static final int DEL_PREPARE = 3;
+
+    private static final int DEL_READY = 4;
+
+    private static final int CONFIRM = 5;
+
+    private final GenericJackson2JsonRedisSerializer serializer = new GenericJackson2JsonRedisSerializer();
+
+    private final DiskSpool spool;
+
+    private final long budgetMillis;
+
+    private final long retryMillis;
+
+    private final int drainBatchSize;
+
+    /**
+     * 队列中还有变更的消息（p:checkBackId / r:msgId） -> 变更数，和写入队列在同一把锁下更新
+     */
+    private final Map<String, Integer> pending = new HashMap<>();
+
+    private final ExecutorService writers;
+
+    private final Thread drainer;
+
+    private final ConfirmBatcher confirms;
+
+    private final Object signal = new Object();
+
+    private final LongAdder budgetExceeded = new LongAdder();
+
+    private final LongAdder spooled = new LongAdder();
+
+    private volatile boolean closed;
+
+    /**
+     * @param delegate      被委托的协调者
+     * @param file          本地队列文件
+     * @param maxBytes      本地队列容量
+     * @param budgetMillis  prepare写入的时限
+     * @param writerThreads 执行prepare写入的线程数，都在写入时由调用线程执行
+     * @param retryMillis    写回失败后的重试间隔
+     * @param drainBatchSize 每次写回的最大变更数
+     */
+    public SpoolingCoordinator(Coordinator delegate, File file, long maxBytes, long budgetMillis, int writerThreads,
+                               long retryMillis, int drainBatchSize) throws IOException {
+        super(delegate);
+        if (budgetMillis < 1 || writerThreads < 1 || retryMillis < 1 || drainBatchSize < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Budget, writer threads, retry and drain batch size must be positive, budgetMillis: %d, " +
+                            "writerThreads: %d, retryMillis: %d, drainBatchSize: %d",
+                    budgetMillis, writerThreads, retryMillis, drainBatchSize));
+        }
+        this.spool = new DiskSpool(file, maxBytes);
+        this.budgetMillis = budgetMillis;
+        this.retryMillis = retryMillis;
+        this.drainBatchSize = drainBatchSize;
+        //重启后根据队列中剩余的变更重建索引
+        spool.forEach(record -> retain((Op) serializer.deserialize(record)));
+        //不排队：线程都在写入时由调用线程执行，关闭后拒绝
+        this.writers = new ThreadPoolExecutor(writerThreads, writerThreads, 0L, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r, "spooling-coordinator-writer");
+            thread.setDaemon(true);
+            return thread;
+        }, (r, executor) -> {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Spooling coordinator is closed");
+            }
+            r.run();
+        });
+        this.drainer = new Thread(this::drain, "spooling-coordinator-drainer");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+        this.confirms = new ConfirmBatcher("spooling-coordinator-confirms", new ConfirmBatcher.Callback() {
+            @Override
+            public void confirmed(List<String> ids) {
+                delReady(ids);
+            }
+
+            @Override
+            public void nacked(List<String> ids) {
+            }
+        });
+    }
+
+    @Override
+    public void setPrepare(PrepareMessage prepareMessage) {
+        Op op = new Op(SET_PREPARE, prepareMessage.getCheckBackId(), null, false, prepareMessage);
+        if (!spoolIfPending(op)) {
+            withinBudget(() -> delegate.setPrepare(prepareMessage), Collections.singletonList(op));
+        }
+    }
+
+    @Override
+    public void setPrepare(List<PrepareMessage> prepareMessages) {
+        List<Op> ops = new ArrayList<>(prepareMessages.size());
+        prepareMessages.forEach(p -> ops.add(new Op(SET_PREPARE, p.getCheckBackId(), null, false, p)));
+        List<Op> direct = spoolPending(ops);
+        if (direct.isEmpty()) {
+            return;
+        }
+        List<PrepareMessage> messages = new ArrayList<>(direct.size());
+        direct.forEach(op -> messages.add((PrepareMessage) op.getMessage()));
+        withinBudget(() -> {
+            if (delegate instanceof BatchCoordinator) {
+                ((BatchCoordinator) delegate).setPrepare(messages);
+            } else {
+                messages.forEach(delegate::setPrepare);
+            }
+        }, direct);
+    }
+
+    @Override
+    public void setReady(String msgId, String checkBackId, EventMessage message) {
+        if (!spoolIfPending(new Op(SET_READY, msgId, checkBackId, false, message))) {
+            delegate.setReady(msgId, checkBackId, message);
+        }
+    }
+
+    @Override
+    public void delPrepare(String checkBackId) {
+        if (!spoolIfPending(new Op(DEL_PREPARE, checkBackId, null, false, null))) {
+            delegate.delPrepare(checkBackId);
+        }
+    }
+
+    @Override
+    public void delReady(String msgId) {
+        if (!spoolIfPending(new Op(DEL_READY, msgId, null, false, null))) {
+            delegate.delReady(msgId);
+        }
+    }
+
+    @Override
+    public void delReady(List<String> msgIds) {
+        List<Op> ops = new ArrayList<>(msgIds.size());
+        msgIds.forEach(id -> ops.add(new Op(DEL_READY, id, null, false, null)));
+        List<Op> direct = spoolPending(ops);
+        if (direct.isEmpty()) {
+            return;
+        }
+        List<String> ids = new ArrayList<>(direct.size());
+        direct.forEach(op -> ids.add(op.getId()));
+        if (delegate instanceof BatchCoordinator) {
+            ((BatchCoordinator) delegate).delReady(ids);
+        } else {
+            ids.forEach(delegate::delReady);
+        }
+    }
+
+    /**
+     * ack合并成批后删除ready消息，删除时同样保证同一条消息的变更顺序
+     */
+    @Override
+    public void confirmCallback(CorrelationData correlationData, boolean ack) {
+        if (ack && correlationData != null && correlationData.getId() != null) {
+            confirms.ack(correlationData.getId());
+            return;
+        }
+        if (correlationData == null
+                || !spoolIfPending(new Op(CONFIRM, correlationData.getId(), null, ack, null))) {
+            delegate.confirmCallback(correlationData, ack);
+        }
+    }
+
+    /**
+     * 消息都写回被委托的协调者，由Daemon补偿被委托的协调者
+     */
+    @Override
+    public List<PrepareMessage> getPrepare() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<EventMessage> getReady() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * 本地队列中等待写回的状态变更数
+     */
+    public int getSpoolRecords() {
+        return spool.records();
+    }
+
+    public long getSpoolBytes() {
+        return spool.bytes();
+    }
+
+    public long getSpoolCapacity() {
+        return spool.capacity();
+    }
+
+    /**
+     * 队列中还有变更的消息数
+     */
+    public int getPendingIds() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * 本地队列的占用比例（只计算未写回的变更）
+     */
+    public double getSpoolFillRatio() {
+        return (double) spool.bytes() / spool.capacity();
+    }
+
+    /**
+     * prepare写入超时的次数（不含连接失败）
+     */
+    public long getBudgetExceeded() {
+        return budgetExceeded.sum();
+    }
+
+    /**
+     * 写入本地队列的状态变更数
+     */
+    public long getSpooled() {
+        return spooled.sum();
+    }
+
+    /**
+     * 在时限内写入，超时或redis连接失败后写入本地队列
+     */
+    private void withinBudget(Runnable write, List<Op> ops) {
+        Future<?> future = writers.submit(write);
+        try {
+            future.get(budgetMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            budgetExceeded.increment();
+            log.warn("Coordinator write exceeded budget, spool it, budget: {}ms, count: {}", budgetMillis, ops.size());
+            spool(ops);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DataAccessResourceFailureException || e.getCause() instanceof QueryTimeoutException) {
+                log.warn("Coordinator write failed, spool it, count: {}", ops.size(), e.getCause());
+                spool(ops);
+                return;
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing coordinator", e);
+        }
+    }
+
+    /**
+     * 队列中还有同一条消息的变更时排到队尾，返回是否已写入队列
+     */
+    private boolean spoolIfPending(Op op) {
+        return spoolPending(Collections.singletonList(op)).isEmpty();
+    }
+
+    /**
+     * 把队列中还有同一条消息变更的部分排到队尾，返回其余需要直接写入的变更
+     */
+    private List<Op> spoolPending(List<Op> ops) {
+        List<Op> direct = new ArrayList<>(ops.size());
+        boolean spooledAny = false;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return ops;
+            }
+            for (Op op : ops) {
+                if (keys(op).stream().anyMatch(pending::containsKey)) {
+                    append(op);
+                    spooledAny = true;
+                } else {
+                    direct.add(op);
+                }
+            }
+        }
+        if (spooledAny) {
+            signal();
+        }
+        return direct;
+    }
+
+    private void spool(List<Op> ops) {
+        synchronized (pending) {
+            ops.forEach(this::append);
+        }
+        signal();
+    }
+
+    /**
+     * 写入队列并登记消息，调用方持有pending的锁
+     */
+    private void append(Op op) {
+        try {
+            if (!spool.append(serializer.serialize(op))) {
+                throw new IllegalStateException(String.format("Coordinator spool is full, capacity: %d, id: %s",
+                        spool.capacity(), op.getId()));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Write coordinator spool failed, id: %s", op.getId()), e);
+        }
+        retain(op);
+        spooled.increment();
+    }
+
+    private void retain(Op op) {
+        keys(op).forEach(key -> pending.merge(key, 1, Integer::sum));
+    }
+
+    private void release(Op op) {
+        keys(op).forEach(key -> pending.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null));
+    }
+
+    /**
+     * 变更涉及的消息：prepare以checkBackId标识，ready以msgId标识；setReady同时删除prepare，两者都涉及
+     */
+    private static List<String> keys(Op op) {
+        switch (op.getType()) {
+            case SET_PREPARE:
+            case DEL_PREPARE:
+                return Collections.singletonList("p:" + op.getId());
+            case SET_READY:
+                return op.getCheckBackId() == null ? Collections.singletonList("r:" + op.getId())
+                        : Arrays.asList("r:" + op.getId(), "p:" + op.getCheckBackId());
+            default:
+                return Collections.singletonList("r:" + op.getId());
+        }
+    }
+
+    private void signal() {
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * 按顺序分批写回被委托的协调者，失败后整批原样重试，不会跳过
+     */
+    private void drain() {
+        while (!closed) {
+            try {
+                List<byte[]> records = spool.peek(drainBatchSize);
+                if (records.isEmpty()) {
+                    synchronized (signal) {
+                        signal.wait(retryMillis);
+                    }
+                    continue;
+                }
+                List<Op> ops = new ArrayList<>(records.size());
+                records.forEach(record -> ops.add((Op) serializer.deserialize(record)));
+                apply(ops);
+                synchronized (pending) {
+                    spool.advance();
+                    ops.forEach(this::release);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                log.warn("Drain coordinator spool error, retry in {}ms, records: {}", retryMillis, spool.records(), e);
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 连续的prepare写入、ready删除合并成一次批量写入，其他变更逐条写入，整体顺序不变
+     */
+    private void apply(List<Op> ops) {
+        boolean batch = delegate instanceof BatchCoordinator;
+        int i = 0;
+        while (i < ops.size()) {
+            Op op = ops.get(i);
+            int j = i + 1;
+            if (batch && (op.getType() == SET_PREPARE || op.getType() == DEL_READY)) {
+                while (j < ops.size() && ops.get(j).getType() == op.getType()) {
+                    j++;
+                }
+            }
+            if (j - i == 1) {
+                apply(op);
+            } else if (op.getType() == SET_PREPARE) {
+                List<PrepareMessage> messages = new ArrayList<>(j - i);
+                ops.subList(i, j).forEach(o -> messages.add((PrepareMessage) o.getMessage()));
+                ((BatchCoordinator) delegate).setPrepare(messages);
+            } else {
+                List<String> ids = new ArrayList<>(j - i);
+                ops.subList(i, j).forEach(o -> ids.add(o.getId()));
+                ((BatchCoordinator) delegate).delReady(ids);
+            }
+            i = j;
+        }
+    }
+
+    private void apply(Op op) {
+        switch (op.getType()) {
+            case SET_PREPARE:
+                delegate.setPrepare((PrepareMessage) op.getMessage());
+                break;
+            case SET_READY:
+                delegate.setReady(op.getId(), op.getCheckBackId(), (EventMessage) op.getMessage());
+                break;
+            case DEL_PREPARE:
+                delegate.delPrepare(op.getId());
+                break;
+            case DEL_READY:
+                delegate.delReady(op.getId());
+                break;
+            case CONFIRM:
+                delegate.confirmCallback(new CorrelationData(op.getId()), op.isAck());
+                break;
+            default:
+                throw new IllegalStateException(String.format("Unknown spool op type: %d", op.getType()));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        //先写完已经到达的确认
+        confirms.close();
+        closed = true;
+        drainer.interrupt();
+        writers.shutdownNow();
+        spool.close();
+    }
+
+    /**
+     * 一次状态变更
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Op {
+
+        private int type;
+
+        private String id;
+
+        private String checkBackId;
+
+        private boolean ack;
+
+        private Object message;
+    }
+}
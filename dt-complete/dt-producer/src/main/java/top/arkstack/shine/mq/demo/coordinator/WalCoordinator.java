@@ -0,0 +1,496 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import top.arkstack.shine.mq.bean.EventMessage;
+import top.arkstack.shine.mq.bean.PrepareMessage;
+import top.arkstack.shine.mq.coordinator.Coordinator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 基于本地预写日志（WAL）的协调者
+ * <p>
+ * prepare、ready消息的每次变更都追加到内存映射的日志段文件中，内存中保存当前状态，不需要访问redis。
+ * 适合不需要在多个节点间共享协调者状态的生产者：
+ * <ul>
+ * <li>组提交：写入方追加记录后等待后台线程统一 force，一次刷盘覆盖这段时间内所有写入；
+ * 最多等待 syncTimeoutMillis，刷盘失败或超时时写入方抛出异常（内存状态已经更新，由Daemon回查或补偿）</li>
+ * <li>压缩：定期把当前状态写入新的日志段，删除旧的日志段</li>
+ * <li>恢复：启动时按顺序重放日志段，校验失败（写了一半）的记录及其之后的内容被忽略，恢复出的消息由Daemon补偿</li>
+ * </ul>
+ * 状态只在本节点，多个节点各自使用自己的日志目录，由各自的Daemon补偿。
+ * 记录格式：[int 长度][byte 类型][short id长度][id][载荷][int crc32]，载荷为 {@link CoordinatorEntry} 的json
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Slf4j
+public class WalCoordinator extends DelegatingCoordinator implements PagedCoordinator, LocalCoordinator, AutoCloseable {
+
+    private static final byte PREPARE_PUT = 1;
+
+    private static final byte PREPARE_DEL = 2;
+
+    private static final byte READY_PUT = 3;
+
+    private static final byte READY_DEL = 4;
+
+    private static final String SUFFIX = ".wal";
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final GenericJackson2JsonRedisSerializer serializer = new GenericJackson2JsonRedisSerializer();
+
+    private final File dir;
+
+    private final int segmentBytes;
+
+    private final long timeoutMillis;
+
+    private final long syncIntervalMillis;
+
+    private final long syncTimeoutMillis;
+
+    private final Map<String, CoordinatorEntry> prepare = new ConcurrentHashMap<>();
+
+    private final Map<String, CoordinatorEntry> ready = new ConcurrentHashMap<>();
+
+    /**
+     * 已经写满的日志段
+     */
+    private final Deque<File> segments = new ArrayDeque<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, r -> {
+        Thread thread = new Thread(r, "wal-coordinator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Object syncMonitor = new Object();
+
+    private long segmentSeq;
+
+    private File current;
+
+    private MappedByteBuffer buffer;
+
+    /**
+     * 累计写入的字节数，作为日志序号
+     */
+    private long written;
+
+    /**
+     * 已经刷盘的日志序号
+     */
+    private volatile long synced;
+
+    /**
+     * 刷盘失败时覆盖到的日志序号，不超过它的写入都不能确认已经落盘，由syncMonitor保护
+     */
+    private long failed;
+
+    private Exception syncError;
+
+    /**
+     * @param dir                  日志目录
+     * @param segmentBytes         日志段大小
+     * @param timeoutMillis        消息超时时长
+     * @param syncIntervalMillis   组提交间隔；0即不等待刷盘，由操作系统异步写回
+     * @param syncTimeoutMillis    写入方等待刷盘的最长时间
+     * @param compactIntervalMillis 压缩间隔
+     */
+    public WalCoordinator(Coordinator delegate, File dir, int segmentBytes, long timeoutMillis,
+                          long syncIntervalMillis, long syncTimeoutMillis, long compactIntervalMillis) throws IOException {
+        super(delegate);
+        if (segmentBytes < 1024 || compactIntervalMillis < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Segment bytes can't be less than 1024 and compact interval must be positive, segmentBytes: %d, compactIntervalMillis: %d",
+                    segmentBytes, compactIntervalMillis));
+        }
+        if (syncIntervalMillis > 0 && syncTimeoutMillis < syncIntervalMillis) {
+            throw new IllegalArgumentException(String.format(
+                    "Sync timeout can't be less than sync interval, syncTimeoutMillis: %d, syncIntervalMillis: %d",
+                    syncTimeoutMillis, syncIntervalMillis));
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException(String.format("Create wal dir failed, dir: %s", dir));
+        }
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.timeoutMillis = timeoutMillis;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.syncTimeoutMillis = syncTimeoutMillis;
+        recover();
+        roll();
+        scheduler.scheduleWithFixedDelay(this::sync, Math.max(1L, syncIntervalMillis),
+                Math.max(1L, syncIntervalMillis), TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::compact, compactIntervalMillis, compactIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void setPrepare(PrepareMessage prepareMessage) {
+        append(new Record(PREPARE_PUT, prepareMessage.getCheckBackId(),
+                new CoordinatorEntry(System.currentTimeMillis(), prepareMessage)));
+    }
+
+    /**
+     * 写ready和删prepare在一次追加中完成
+     */
+    @Override
+    public void setReady(String msgId, String checkBackId, EventMessage message) {
+        append(new Record(READY_PUT, msgId, new CoordinatorEntry(System.currentTimeMillis(), message)),
+                new Record(PREPARE_DEL, checkBackId, null));
+    }
+
+    @Override
+    public void delPrepare(String checkBackId) {
+        append(new Record(PREPARE_DEL, checkBackId, null));
+    }
+
+    @Override
+    public void delReady(String msgId) {
+        append(new Record(READY_DEL, msgId, null));
+    }
+
+    /**
+     * 一次性加载全部超时的prepare消息，积压大时请使用 {@link #scanPrepare(int, PageConsumer)}
+     */
+    @Override
+    public List<PrepareMessage> getPrepare() throws Exception {
+        List<PrepareMessage> list = new ArrayList<>();
+        scanPrepare(1000, list::addAll);
+        return list;
+    }
+
+    /**
+     * 一次性加载全部超时的ready消息，积压大时请使用 {@link #scanReady(int, PageConsumer)}
+     */
+    @Override
+    public List<EventMessage> getReady() throws Exception {
+        List<EventMessage> list = new ArrayList<>();
+        scanReady(1000, list::addAll);
+        return list;
+    }
+
+    /**
+     * 默认协调者完成投递后，prepare消息已经转交给它跟踪，这里删除自己存储的prepare消息
+     */
+    @Override
+    public void compensatePrepare(PrepareMessage message) throws Exception {
+        super.compensatePrepare(message);
+        delPrepare(message.getCheckBackId());
+    }
+
+    @Override
+    public void scanPrepare(int pageSize, PageConsumer<PrepareMessage> consumer) throws Exception {
+        scan(prepare, pageSize, consumer);
+    }
+
+    @Override
+    public void scanReady(int pageSize, PageConsumer<EventMessage> consumer) throws Exception {
+        scan(ready, pageSize, consumer);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> void scan(Map<String, CoordinatorEntry> entries, int pageSize, PageConsumer<T> consumer) throws Exception {
+        long deadline = System.currentTimeMillis() - timeoutMillis;
+        List<String> ids = new ArrayList<>(pageSize);
+        List<T> page = new ArrayList<>(pageSize);
+        for (Map.Entry<String, CoordinatorEntry> entry : entries.entrySet()) {
+            if (entry.getValue().getTime() > deadline) {
+                continue;
+            }
+            ids.add(entry.getKey());
+            page.add((T) entry.getValue().getMessage());
+            if (page.size() >= pageSize) {
+                consumer.accept(ids, page);
+                ids = new ArrayList<>(pageSize);
+                page = new ArrayList<>(pageSize);
+            }
+        }
+        if (!page.isEmpty()) {
+            consumer.accept(ids, page);
+        }
+    }
+
+    /**
+     * 追加记录并更新内存状态，然后等待组提交刷盘
+     *
+     * @throws IllegalStateException 刷盘失败或超时，记录可能没有落盘
+     */
+    private void append(Record... records) {
+        long lsn;
+        synchronized (this) {
+            for (Record record : records) {
+                write(record);
+                apply(record.type, record.id, record.entry);
+            }
+            lsn = written;
+        }
+        awaitSync(lsn);
+    }
+
+    /**
+     * 写入一条记录，当前日志段放不下时切换到新的日志段，调用方持有锁
+     */
+    private void write(Record record) {
+        byte[] id = record.id.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = record.entry == null ? EMPTY : serializer.serialize(record.entry);
+        int length = 1 + 2 + id.length + payload.length;
+        //长度 + 内容 + crc，并至少留出4个字节的0作为结束标记
+        int size = 4 + length + 4;
+        if (size + 4 > segmentBytes) {
+            throw new IllegalArgumentException(String.format("Wal record too large, size: %d, segmentBytes: %d", size, segmentBytes));
+        }
+        if (buffer.remaining() < size + 4) {
+            roll();
+        }
+        CRC32 crc = new CRC32();
+        int start = buffer.position();
+        buffer.putInt(length);
+        buffer.put(record.type);
+        buffer.putShort((short) id.length);
+        buffer.put(id);
+        buffer.put(payload);
+        ByteBuffer view = buffer.duplicate();
+        view.position(start + 4).limit(start + 4 + length);
+        crc.update(view);
+        buffer.putInt((int) crc.getValue());
+        written += size;
+    }
+
+    private void apply(byte type, String id, CoordinatorEntry entry) {
+        switch (type) {
+            case PREPARE_PUT:
+                prepare.put(id, entry);
+                break;
+            case PREPARE_DEL:
+                prepare.remove(id);
+                break;
+            case READY_PUT:
+                ready.put(id, entry);
+                break;
+            case READY_DEL:
+                ready.remove(id);
+                break;
+            default:
+                throw new IllegalStateException(String.format("Unknown wal record type: %d", type));
+        }
+    }
+
+    /**
+     * 当前日志段刷盘后切换到新的日志段，调用方持有锁
+     */
+    private void roll() {
+        if (buffer != null) {
+            buffer.force();
+            segments.add(current);
+            markSynced(written);
+        }
+        segmentSeq++;
+        current = new File(dir, String.format("%020d%s", segmentSeq, SUFFIX));
+        try (RandomAccessFile file = new RandomAccessFile(current, "rw")) {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(String.format("Create wal segment failed, file: %s", current), e);
+        }
+    }
+
+    /**
+     * 组提交：一次force覆盖上一次刷盘之后的所有写入
+     */
+    private void sync() {
+        long target;
+        MappedByteBuffer b;
+        synchronized (this) {
+            target = written;
+            b = buffer;
+        }
+        if (target <= synced) {
+            return;
+        }
+        try {
+            b.force();
+            markSynced(target);
+        } catch (Exception e) {
+            log.error("Wal sync error, lsn: {}", target, e);
+            markFailed(target, e);
+        }
+    }
+
+    /**
+     * 刷盘失败，等待不超过lsn的写入方都收到失败
+     */
+    private void markFailed(long lsn, Exception e) {
+        synchronized (syncMonitor) {
+            if (lsn > failed) {
+                failed = lsn;
+                syncError = e;
+            }
+            syncMonitor.notifyAll();
+        }
+    }
+
+    private void markSynced(long lsn) {
+        synchronized (syncMonitor) {
+            if (lsn > synced) {
+                synced = lsn;
+            }
+            syncMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * 等待刷盘覆盖到lsn，最多等待 syncTimeoutMillis
+     */
+    private void awaitSync(long lsn) {
+        if (syncIntervalMillis <= 0) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + syncTimeoutMillis;
+        synchronized (syncMonitor) {
+            while (true) {
+                if (failed >= lsn) {
+                    throw new IllegalStateException(String.format("Wal sync failed, lsn: %d", lsn), syncError);
+                }
+                if (synced >= lsn) {
+                    return;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IllegalStateException(String.format(
+                            "Wal sync timed out, lsn: %d, synced: %d, syncTimeoutMillis: %d", lsn, synced, syncTimeoutMillis));
+                }
+                try {
+                    syncMonitor.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for wal sync", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 把当前状态写入新的日志段，之后删除旧的日志段，包内可见以便测试直接触发
+     */
+    synchronized void compact() {
+        try {
+            if (segments.isEmpty()) {
+                return;
+            }
+            roll();
+            List<File> obsolete = new ArrayList<>(segments);
+            prepare.forEach((id, entry) -> write(new Record(PREPARE_PUT, id, entry)));
+            ready.forEach((id, entry) -> write(new Record(READY_PUT, id, entry)));
+            buffer.force();
+            markSynced(written);
+            obsolete.forEach(file -> {
+                segments.remove(file);
+                if (!file.delete()) {
+                    log.warn("Delete wal segment failed, file: {}", file);
+                }
+            });
+            log.info("Wal compacted, prepare: {}, ready: {}, deleted segments: {}", prepare.size(), ready.size(), obsolete.size());
+        } catch (Exception e) {
+            log.error("Wal compact error", e);
+        }
+    }
+
+    /**
+     * 按顺序重放所有日志段
+     */
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        int records = 0;
+        for (File file : files) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                MappedByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                records += replay(file, in);
+            }
+            segments.add(file);
+            segmentSeq = Math.max(segmentSeq, Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length())));
+        }
+        log.info("Wal recovered, segments: {}, records: {}, prepare: {}, ready: {}", files.length, records, prepare.size(), ready.size());
+    }
+
+    private int replay(File file, MappedByteBuffer in) {
+        int records = 0;
+        while (in.remaining() >= 4) {
+            int start = in.position();
+            int length = in.getInt();
+            if (length <= 0 || length + 4 > in.remaining()) {
+                break;
+            }
+            ByteBuffer view = in.duplicate();
+            view.position(start + 4).limit(start + 4 + length);
+            CRC32 crc = new CRC32();
+            crc.update(view);
+            byte type = in.get();
+            short idLength = in.getShort();
+            if (idLength < 0 || 1 + 2 + idLength > length) {
+                log.warn("Wal record corrupted, ignore the rest of segment, file: {}, position: {}", file, start);
+                break;
+            }
+            byte[] id = new byte[idLength];
+            in.get(id);
+            byte[] payload = new byte[length - 1 - 2 - idLength];
+            in.get(payload);
+            if ((int) crc.getValue() != in.getInt()) {
+                log.warn("Wal record corrupted, ignore the rest of segment, file: {}, position: {}", file, start);
+                break;
+            }
+            apply(type, new String(id, StandardCharsets.UTF_8),
+                    payload.length == 0 ? null : (CoordinatorEntry) serializer.deserialize(payload));
+            records++;
+        }
+        return records;
+    }
+
+    @Override
+    public synchronized void close() {
+        scheduler.shutdownNow();
+        if (buffer != null) {
+            buffer.force();
+            markSynced(written);
+        }
+    }
+
+    private static final class Record {
+
+        final byte type;
+
+        final String id;
+
+        final CoordinatorEntry entry;
+
+        Record(byte type, String id, CoordinatorEntry entry) {
+            this.type = type;
+            this.id = id;
+            this.entry = entry;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import top.arkstack.shine.mq.coordinator.Coordinator;
+
+/**
+ * 只包装其他协调者、自身不保存消息的协调者，Daemon不补偿它，而是补偿它包装的存储协调者
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public interface WrappingCoordinator extends Coordinator {
+}
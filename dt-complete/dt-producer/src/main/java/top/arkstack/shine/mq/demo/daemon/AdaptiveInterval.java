@@ -0,0 +1,58 @@
+package top.arkstack.shine.mq.demo.daemon;
+
+/**
+ * 根据积压自适应的执行间隔
+ * <p>
+ * 本轮处理的消息数多于上一轮（积压在增长）时间隔减半，本轮没有消息时间隔翻倍，
+ * 其他情况保持不变，间隔始终在 [minMillis, maxMillis] 之间。
+ * 每轮都是同样几条卡住的消息时处理数不变，间隔不会因此一直缩短到最小值
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public class AdaptiveInterval {
+
+    private final long minMillis;
+
+    private final long maxMillis;
+
+    private long current;
+
+    private long lastHandled;
+
+    /**
+     * @param minMillis     最小间隔
+     * @param maxMillis     最大间隔
+     * @param initialMillis 初始间隔
+     */
+    public AdaptiveInterval(long minMillis, long maxMillis, long initialMillis) {
+        if (minMillis < 1 || maxMillis < minMillis || initialMillis < minMillis || initialMillis > maxMillis) {
+            throw new IllegalArgumentException(String.format(
+                    "Interval must satisfy 0 < min <= initial <= max, min: %d, initial: %d, max: %d",
+                    minMillis, initialMillis, maxMillis));
+        }
+        this.minMillis = minMillis;
+        this.maxMillis = maxMillis;
+        this.current = initialMillis;
+    }
+
+    /**
+     * 根据本轮处理的消息数计算下一次的间隔
+     *
+     * @param handled 本轮处理的消息数
+     * @return 下一次的间隔
+     */
+    public synchronized long next(long handled) {
+        if (handled == 0) {
+            current = Math.min(maxMillis, current * 2);
+        } else if (handled > lastHandled) {
+            current = Math.max(minMillis, current / 2);
+        }
+        lastHandled = handled;
+        return current;
+    }
+
+    public synchronized long current() {
+        return current;
+    }
+}
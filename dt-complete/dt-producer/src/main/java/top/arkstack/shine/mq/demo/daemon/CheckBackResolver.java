@@ -0,0 +1,26 @@
+package top.arkstack.shine.mq.demo.daemon;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 回查服务A的任务状态，每个bizId对应一个实现
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public interface CheckBackResolver {
+
+    /**
+     * 负责回查的业务id，对应 PrepareMessage 的 bizId
+     */
+    String bizId();
+
+    /**
+     * 批量回查
+     *
+     * @param checkBackIds 回查id
+     * @return 已完成任务的 回查id -> 重新投递需要的data（可以为null），未完成的任务不在结果中
+     */
+    Map<String, Object> resolve(List<String> checkBackIds);
+}
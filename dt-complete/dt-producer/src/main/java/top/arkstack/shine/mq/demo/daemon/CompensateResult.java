@@ -0,0 +1,43 @@
+package top.arkstack.shine.mq.demo.daemon;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import top.arkstack.shine.mq.bean.EventMessage;
+
+import java.util.Collection;
+
+/**
+ * 一次ready消息补偿的结果
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Data
+@AllArgsConstructor
+public class CompensateResult {
+
+    /**
+     * 投递成功数
+     */
+    private int sent;
+
+    /**
+     * 超过截止时间没有派发或被取消的消息数，留给下一轮补偿
+     */
+    private int skipped;
+
+    /**
+     * 宽限时间内补偿过而跳过的消息数
+     */
+    private int deduplicated;
+
+    /**
+     * 截止时间到达并取消后仍未结束的投递数
+     */
+    private int pending;
+
+    /**
+     * 投递失败的消息
+     */
+    private Collection<EventMessage> failed;
+}
@@ -0,0 +1,131 @@
+package top.arkstack.shine.mq.demo.daemon;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import top.arkstack.shine.mq.bean.EventMessage;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 最近补偿过的ready消息
+ * <p>
+ * 消息到mq是异步确认的，重新投递后在确认到达前，该消息仍然留在协调者中，下一轮会被再次补偿。
+ * 这里记录最近补偿过的消息，在宽限时间内跳过，避免mq变慢时同一条消息每一轮都被重复投递。
+ * <p>
+ * 消息以协调者遍历时拿到的msgId作为标识（见 {@link top.arkstack.shine.mq.demo.coordinator.PagedCoordinator.PageConsumer}），
+ * 记录存放在 ConcurrentHashMap 中，各投递线程之间没有全局锁；拿不到msgId的协调者才退回到json内容的md5（{@link #contentKey}）。
+ * 容量超出上限时先清理过期的记录，仍然超出再任意淘汰一部分，被淘汰的消息最多被多补偿一次
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Component
+public class CompensatedCache {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * 宽限时间，补偿后在这段时间内不再补偿同一条消息
+     */
+    @Value("${daemon.dedup.grace-millis:60000}")
+    private long graceMillis;
+
+    /**
+     * 最多记录的消息数
+     */
+    @Value("${daemon.dedup.max-size:100000}")
+    private int maxSize;
+
+    /**
+     * 消息标识 -> 过期时间
+     */
+    private final Map<String, Long> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException(String.format("Dedup max size can't be less than 1, maxSize: %d", maxSize));
+        }
+    }
+
+    /**
+     * 宽限时间内没有补偿过该消息时记录下来并返回true，否则返回false（应当跳过）
+     *
+     * @param id 消息标识，一般为msgId
+     */
+    public boolean tryMark(String id) {
+        long now = System.currentTimeMillis();
+        boolean[] marked = new boolean[1];
+        entries.compute(id, (key, expireAt) -> {
+            if (expireAt != null && expireAt > now) {
+                return expireAt;
+            }
+            marked[0] = true;
+            return now + graceMillis;
+        });
+        if (!marked[0]) {
+            hits.increment();
+            return false;
+        }
+        misses.increment();
+        if (entries.size() > maxSize) {
+            evict(now);
+        }
+        return true;
+    }
+
+    /**
+     * 投递失败时移除记录，下一轮可以立即重试
+     */
+    public void unmark(String id) {
+        entries.remove(id);
+    }
+
+    /**
+     * 先清理过期的记录，仍然超出上限时淘汰到上限的90%，避免每次加入都遍历一遍
+     */
+    private void evict(long now) {
+        entries.values().removeIf(expireAt -> expireAt <= now);
+        int target = maxSize - maxSize / 10;
+        Iterator<String> it = entries.keySet().iterator();
+        while (entries.size() > target && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * 协调者遍历时拿不到msgId时使用的标识：消息json内容的md5
+     */
+    public static String contentKey(EventMessage message) {
+        try {
+            return DigestUtils.md5DigestAsHex(MAPPER.writeValueAsString(message).getBytes(StandardCharsets.UTF_8));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(String.format("Serialize message error, message: %s", message), e);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
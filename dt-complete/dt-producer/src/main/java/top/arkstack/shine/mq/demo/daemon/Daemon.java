@@ -2,18 +2,34 @@ package top.arkstack.shine.mq.demo.daemon;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 import org.springframework.stereotype.Component;
 import top.arkstack.shine.mq.bean.EventMessage;
 import top.arkstack.shine.mq.bean.PrepareMessage;
 import top.arkstack.shine.mq.bean.TransferBean;
 import top.arkstack.shine.mq.coordinator.Coordinator;
-import top.arkstack.shine.mq.coordinator.redis.RedisUtil;
-import top.arkstack.shine.mq.demo.dao.RouteConfigMapper;
-import top.arkstack.shine.mq.demo.dao.model.RouteConfig;
+import top.arkstack.shine.mq.demo.coordinator.AttemptCountingCoordinator;
+import top.arkstack.shine.mq.demo.coordinator.LocalCoordinator;
+import top.arkstack.shine.mq.demo.coordinator.PagedCoordinator;
+import top.arkstack.shine.mq.demo.coordinator.PartitionedCoordinator;
+import top.arkstack.shine.mq.demo.coordinator.WrappingCoordinator;
 
+import javax.annotation.PostConstruct;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * 守护线程
@@ -25,17 +41,133 @@ import java.util.Objects;
  */
 @Slf4j
 @Component
-public class Daemon {
+public class Daemon implements SchedulingConfigurer {
+
+    /**
+     * 分布式锁的租约，持有期间由看门狗自动续约，节点宕机后最多经过一个租约锁被释放
+     */
+    private static final long LOCK_LEASE = 30_000L;
+
+    /**
+     * 一次补偿最长的执行时间，超过后不再派发新的消息，剩余的留给下一轮
+     */
+    private static final long MAX_RUN_MILLIS = 80_000L;
+
+    /**
+     * 本节点标识（pid@host），本地协调者的锁只在本节点内互斥
+     */
+    private static final String NODE = ManagementFactory.getRuntimeMXBean().getName();
+
+    /**
+     * shine-mq默认的协调者，只能一次取出全部消息，没有显式指定时不补偿
+     */
+    private static final String DEFAULT_COORDINATOR = "redisCoordinator";
+
+    @Autowired
+    private ApplicationContext applicationContext;
 
-    // 协调者，默认实现了RedisCoordinator，可自定义实现Coordinator接口
     @Autowired
-    private Coordinator coordinator;
+    private FencedLock fencedLock;
 
     @Autowired
-    private RouteConfigMapper mapper;
+    private List<CheckBackResolver> checkBackResolvers;
 
     @Autowired
-    private RedisUtil redisUtil;
+    private ReadyCompensator readyCompensator;
+
+    @Autowired
+    private CompensatedCache compensatedCache;
+
+    /**
+     * 每批回查的prepare消息个数
+     */
+    @Value("${daemon.check-back-batch-size:500}")
+    private int checkBackBatchSize;
+
+    /**
+     * 分页遍历协调者时每页的消息个数
+     */
+    @Value("${daemon.page-size:1000}")
+    private int pageSize;
+
+    /**
+     * 需要补偿的存储协调者，为空时补偿所有开启的存储协调者
+     */
+    @Value("${daemon.coordinators:}")
+    private String[] coordinatorNames;
+
+    /**
+     * 容器启动后第一次执行的延迟
+     */
+    @Value("${daemon.interval.initial-delay-millis:5000}")
+    private long initialDelayMillis;
+
+    @Value("${daemon.interval.min-millis:1000}")
+    private long minIntervalMillis;
+
+    @Value("${daemon.interval.max-millis:60000}")
+    private long maxIntervalMillis;
+
+    @Value("${daemon.interval.initial-millis:30000}")
+    private long initialIntervalMillis;
+
+    private AdaptiveInterval interval;
+
+    /**
+     * 本轮处理的消息数
+     */
+    private final AtomicLong handled = new AtomicLong();
+
+    private Map<String, CheckBackResolver> resolvers;
+
+    /**
+     * 需要补偿的存储协调者，参见 {@link #storageCoordinators()}
+     */
+    private Map<String, Coordinator> coordinators;
+
+    @PostConstruct
+    public void init() {
+        if (checkBackBatchSize < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "daemon.check-back-batch-size must be positive, checkBackBatchSize: %d", checkBackBatchSize));
+        }
+        resolvers = checkBackResolvers.stream().collect(Collectors.toMap(CheckBackResolver::bizId, Function.identity()));
+        coordinators = storageCoordinators();
+        log.info("Daemon compensates coordinators: {}", coordinators.keySet());
+        interval = new AdaptiveInterval(minIntervalMillis, maxIntervalMillis, initialIntervalMillis);
+    }
+
+    /**
+     * 需要补偿的存储协调者：daemon.coordinators 指定时只补偿列出的协调者，否则补偿所有开启的协调者，
+     * 跳过只做包装的协调者（如 spoolingCoordinator，它的消息在包装的协调者中补偿），
+     * 以及shine-mq默认的redisCoordinator（只能一次取出全部消息），同一个实例只补偿一次
+     */
+    private Map<String, Coordinator> storageCoordinators() {
+        Map<String, Coordinator> found = new LinkedHashMap<>();
+        if (coordinatorNames.length > 0) {
+            for (String name : coordinatorNames) {
+                if (!applicationContext.containsBean(name)) {
+                    throw new IllegalStateException(String.format(
+                            "Daemon coordinator is not enabled, coordinator: %s, enable it with coordinator.<name>.enabled", name));
+                }
+                Coordinator coordinator = applicationContext.getBean(name, Coordinator.class);
+                if (coordinator instanceof WrappingCoordinator) {
+                    throw new IllegalStateException(String.format(
+                            "Daemon coordinator only wraps another coordinator, coordinator: %s, list the wrapped one instead", name));
+                }
+                found.put(name, coordinator);
+            }
+            return found;
+        }
+        applicationContext.getBeansOfType(Coordinator.class).forEach((name, coordinator) -> {
+            if (coordinator instanceof WrappingCoordinator || DEFAULT_COORDINATOR.equals(name)
+                    || found.containsValue(coordinator)) {
+                return;
+            }
+            found.put(name, coordinator);
+        });
+        return found;
+    }
 
     /**
      * 1、fixedDelay控制方法执行的间隔时间，是以上一次方法执行完开始算起，如上一次方法执行阻塞住了，那么直到上一次执行完，并间隔给定的时间后，执行下一次。
@@ -46,57 +178,218 @@ public class Daemon {
      *
      * 4、initialDelay 。如： @Scheduled(initialDelay = 10000,fixedRate = 15000
      * 这个定时器就是在上一个的基础上加了一个initialDelay = 10000 意思就是在容器启动后,延迟10秒后再执行一次定时器,以后每15秒再执行一次该定时器。
+     *
+     * 5、这里使用Trigger，和fixedDelay一样从上一次执行完开始算起，不会重叠执行，也不会堆积，
+     * 间隔由 {@link AdaptiveInterval} 根据上一轮处理的消息数调整：积压增长时缩短，没有积压时退避。
      */
-    @Scheduled(initialDelay = 5_000, fixedRate = 30_000)
+    @Override
+    public void configureTasks(ScheduledTaskRegistrar registrar) {
+        registrar.addTriggerTask(this::process, context -> {
+            Date last = context.lastCompletionTime();
+            return last == null ? new Date(System.currentTimeMillis() + initialDelayMillis)
+                    : new Date(last.getTime() + interval.current());
+        });
+    }
+
     public void process() {
-        try {
-            //处理Prepare消息 如果在集群情况下，是有可能出现重复消息的，这里演示使用分布式锁
-            redisUtil.lock("redis_lock", 90_000L, () -> {
+        long start = System.currentTimeMillis();
+        handled.set(0);
+        coordinators.forEach((name, coordinator) -> {
+            try {
+                process(name, coordinator);
+            } catch (Exception e) {
+                log.error("daemon process error, coordinator: {}", name, e);
+            }
+        });
+        long count = handled.get();
+        long next = interval.next(count);
+        log.info("Daemon cycle finished, cost: {}ms, handled: {}, next interval: {}ms, dedup hits: {}, misses: {}",
+                System.currentTimeMillis() - start, count, next, compensatedCache.getHits(), compensatedCache.getMisses());
+    }
+
+    /**
+     * 补偿一个协调者中的消息，支持分页遍历的协调者按页处理，内存占用与积压大小无关
+     */
+    private void process(String coordinatorName, Coordinator coordinator) {
+        String name = coordinator instanceof LocalCoordinator ? coordinatorName + "_" + NODE : coordinatorName;
+        if (coordinator instanceof PartitionedCoordinator) {
+            processPartitions(name, (PartitionedCoordinator) coordinator);
+        } else if (coordinator instanceof PagedCoordinator) {
+            PagedCoordinator paged = (PagedCoordinator) coordinator;
+            checkBack("redis_lock_" + name, coordinator, consumer -> paged.scanPrepare(pageSize, consumer));
+            compensateReady("redis_lock_ready_" + name, coordinator, consumer -> paged.scanReady(pageSize, consumer));
+        } else {
+            checkBack("redis_lock_" + name, coordinator, consumer -> {
                 List<PrepareMessage> prepare = coordinator.getPrepare();
                 if (!Objects.isNull(prepare) && prepare.size() > 0) {
-                    prepare.forEach(p -> {
-                        //可以首先根据p.getBizId()获取业务id进行分类
-                        //再根据回查id（这里是用数据库id，可以根据自己的业务场景采用其他方式）查询服务A的该任务是否已经完成，
-                        RouteConfig config = mapper.selectByPrimaryKey(Long.valueOf(p.getCheckBackId()));
-                        if (Objects.isNull(config)) {
-                            log.info("服务A中任务并没有完成，CheckBackId:{}", p);
-                            //因为服务A的任务没有完成，所以这次操作就是失败了，可以记录下日志，这时候数据是一致的
-                            coordinator.delPrepare(p.getCheckBackId());
-                        } else {
-                            log.info("服务A中任务已经完成，CheckBackId:{}", p);
-                            //服务A的任务已经完成，但是prepare消息没被删除，说明投递到mq失败了，那就继续进行投递或者将任务回滚
-                            try {
-                                //如果要任务回滚，可以按照业务自行回滚
-                                //如果进行投递,有需要传递信息，则需要重新加上，这里演示继续投递，模拟之前的data
-                                p.setData(new TransferBean(p.getCheckBackId(), config.getPath()));
-                                coordinator.compensatePrepare(p);
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
-                        }
-                    });
+                    consumer.accept(prepare);
                 }
-                return null;
             });
-            //处理ready消息
-            redisUtil.lock("redis_lock_ready", 90_000L, () -> {
+            compensateReady("redis_lock_ready_" + name, coordinator, consumer -> {
                 List<EventMessage> ready = coordinator.getReady();
                 if (!Objects.isNull(ready) && ready.size() > 0) {
-                    ready.forEach(r -> {
-                        //超时的ready的消息，就直接捞起发送到消息中间件，因为只要是ready消息持久化到协调者，那就说明服务A的任务已经完成。
-                        //因为消息到mq是异步通知的，所以补偿的频率过高会造成消息重复，下游服务最好能保证幂等性
-                        try {
-                            coordinator.compensateReady(r);
-                            log.info("重新投递消息： {}", r);
-                        } catch (Exception e) {
-                            log.error("Message failed to be sent : ", e);
-                        }
-                    });
+                    consumer.accept(ready);
+                }
+            });
+        }
+    }
+
+    /**
+     * 按分区补偿，每个分区单独加锁，各节点以随机顺序遍历分区，
+     * 抢到锁的分区由自己补偿，没抢到说明其他节点正在处理，多个节点因此分摊整个积压。
+     * 集群模式下一个分区的key在同一个slot上，每次遍历只访问一个redis节点
+     */
+    private void processPartitions(String name, PartitionedCoordinator coordinator) {
+        List<Integer> slots = IntStream.range(0, coordinator.partitions()).boxed().collect(Collectors.toList());
+        List<String> bizIds = new ArrayList<>(coordinator.prepareBizIds());
+        Collections.shuffle(bizIds);
+        for (String bizId : bizIds) {
+            Collections.shuffle(slots);
+            for (int slot : slots) {
+                checkBack("redis_lock_" + name + "_" + bizId + "_" + slot, coordinator,
+                        consumer -> coordinator.scanPrepare(bizId, slot, pageSize, consumer));
+            }
+        }
+        Collections.shuffle(slots);
+        for (int slot : slots) {
+            compensateReady("redis_lock_ready_" + name + "_" + slot, coordinator,
+                    consumer -> coordinator.scanReady(slot, pageSize, consumer));
+        }
+    }
+
+    /**
+     * 处理Prepare消息 如果在集群情况下，是有可能出现重复消息的，这里演示使用分布式锁，
+     * 补偿前校验fencing token，锁丢失后立即停止
+     */
+    private void checkBack(String lockKey, Coordinator coordinator, Scan<PrepareMessage> scan) {
+        try {
+            fencedLock.lock(lockKey, LOCK_LEASE, fence -> {
+                Coordinator fenced = new FencedCoordinator(coordinator, fence);
+                scan.scan(page -> {
+                    fence.validate();
+                    handled.addAndGet(page.size());
+                    checkBack(fenced, attempts(coordinator), page);
+                });
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("Check back error, lock: {}", lockKey, e);
+        }
+    }
+
+    /**
+     * 处理ready消息，持有锁期间并发补偿，每条消息投递前校验fencing token
+     */
+    private void compensateReady(String lockKey, Coordinator coordinator, Scan<EventMessage> scan) {
+        try {
+            fencedLock.lock(lockKey, LOCK_LEASE, fence -> {
+                ReadyCompensator.Session session = readyCompensator.open(new FencedCoordinator(coordinator, fence),
+                        attempts(coordinator), System.currentTimeMillis() + MAX_RUN_MILLIS);
+                scan.scan(new PagedCoordinator.PageConsumer<EventMessage>() {
+                    @Override
+                    public void accept(List<EventMessage> page) throws Exception {
+                        fence.validate();
+                        session.submit(page);
+                    }
+
+                    @Override
+                    public void accept(List<String> ids, List<EventMessage> page) throws Exception {
+                        fence.validate();
+                        session.submit(ids, page);
+                    }
+                });
+                CompensateResult result = session.await();
+                handled.addAndGet(result.getSent() + result.getFailed().size());
+                if (result.getFailed().size() > 0 || result.getSkipped() > 0 || result.getPending() > 0) {
+                    log.warn("Ready compensation incomplete, lock: {}, sent: {}, failed: {}, skipped: {}, deduplicated: {}, pending: {}",
+                            lockKey, result.getSent(), result.getFailed().size(), result.getSkipped(),
+                            result.getDeduplicated(), result.getPending());
                 }
                 return null;
             });
         } catch (Exception e) {
-            log.error("daemon process error: ", e);
+            log.error("Compensate ready error, lock: {}", lockKey, e);
         }
     }
+
+    /**
+     * 首先根据p.getBizId()获取业务id进行分类，再按批回查
+     */
+    private void checkBack(Coordinator coordinator, AttemptCountingCoordinator attempts, List<PrepareMessage> prepare) {
+        prepare.stream().collect(Collectors.groupingBy(PrepareMessage::getBizId))
+                .forEach((bizId, messages) -> checkBack(coordinator, attempts, bizId, messages));
+    }
+
+    /**
+     * 按批回查同一个bizId的prepare消息，每批只需一次回查（如一次数据库IN查询）；
+     * 回查失败或补偿失败、仍留在协调者中的消息计一次补偿
+     */
+    private void checkBack(Coordinator coordinator, AttemptCountingCoordinator attempts, String bizId,
+                           List<PrepareMessage> prepare) {
+        CheckBackResolver resolver = resolvers.get(bizId);
+        if (Objects.isNull(resolver)) {
+            log.warn("No check back resolver for bizId: {}, skip {} prepare messages", bizId, prepare.size());
+            return;
+        }
+        for (int from = 0; from < prepare.size(); from += checkBackBatchSize) {
+            List<PrepareMessage> batch = prepare.subList(from, Math.min(from + checkBackBatchSize, prepare.size()));
+            //根据回查id（这里是用数据库id，可以根据自己的业务场景采用其他方式）查询服务A的该任务是否已经完成，
+            Map<String, Object> done;
+            try {
+                done = resolver.resolve(batch.stream().map(PrepareMessage::getCheckBackId).collect(Collectors.toList()));
+            } catch (Exception e) {
+                log.error("Check back error, bizId: {}", bizId, e);
+                batch.forEach(p -> attempted(attempts, p));
+                continue;
+            }
+            batch.forEach(p -> {
+                if (!done.containsKey(p.getCheckBackId())) {
+                    log.info("服务A中任务并没有完成，CheckBackId:{}", p);
+                    //因为服务A的任务没有完成，所以这次操作就是失败了，可以记录下日志，这时候数据是一致的
+                    coordinator.delPrepare(p.getCheckBackId());
+                } else {
+                    log.info("服务A中任务已经完成，CheckBackId:{}", p);
+                    //服务A的任务已经完成，但是prepare消息没被删除，说明投递到mq失败了，那就继续进行投递或者将任务回滚
+                    try {
+                        //如果要任务回滚，可以按照业务自行回滚
+                        //如果进行投递,有需要传递信息，则需要重新加上
+                        p.setData(new TransferBean(p.getCheckBackId(), done.get(p.getCheckBackId())));
+                        coordinator.compensatePrepare(p);
+                    } catch (FencedLock.StaleLockException e) {
+                        log.warn("Lock lost, check back left to next round, CheckBackId:{}", p.getCheckBackId());
+                    } catch (Exception e) {
+                        log.error("Compensate prepare error, CheckBackId:{}", p.getCheckBackId(), e);
+                        attempted(attempts, p);
+                    }
+                }
+            });
+        }
+    }
+
+    private static AttemptCountingCoordinator attempts(Coordinator coordinator) {
+        return coordinator instanceof AttemptCountingCoordinator ? (AttemptCountingCoordinator) coordinator : null;
+    }
+
+    /**
+     * 计数失败不影响回查，最多少计一次
+     */
+    private static void attempted(AttemptCountingCoordinator attempts, PrepareMessage message) {
+        if (attempts == null) {
+            return;
+        }
+        try {
+            attempts.prepareAttempted(message);
+        } catch (Exception e) {
+            log.warn("Count check back attempt error, checkBackId: {}", message.getCheckBackId(), e);
+        }
+    }
+
+    /**
+     * 遍历一个协调者（或其中一个分区）的消息
+     */
+    @FunctionalInterface
+    private interface Scan<T> {
+
+        void scan(PagedCoordinator.PageConsumer<T> consumer) throws Exception;
+    }
 }
@@ -0,0 +1,35 @@
+package top.arkstack.shine.mq.demo.daemon;
+
+import top.arkstack.shine.mq.bean.EventMessage;
+import top.arkstack.shine.mq.bean.PrepareMessage;
+import top.arkstack.shine.mq.coordinator.Coordinator;
+import top.arkstack.shine.mq.demo.coordinator.DelegatingCoordinator;
+
+/**
+ * 补偿前检查锁是否丢失的协调者，看门狗发现锁丢失后旧持有者的补偿会被拒绝，避免两个节点长时间重复投递同一批消息。
+ * 每条消息只检查本地标记，访问redis的租约检查由Daemon每页执行一次
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public class FencedCoordinator extends DelegatingCoordinator {
+
+    private final FencedLock.Fence fence;
+
+    public FencedCoordinator(Coordinator delegate, FencedLock.Fence fence) {
+        super(delegate);
+        this.fence = fence;
+    }
+
+    @Override
+    public void compensatePrepare(PrepareMessage message) throws Exception {
+        fence.check();
+        super.compensatePrepare(message);
+    }
+
+    @Override
+    public void compensateReady(EventMessage message) throws Exception {
+        fence.check();
+        super.compensateReady(message);
+    }
+}
@@ -0,0 +1,219 @@
+package top.arkstack.shine.mq.demo.daemon;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 带看门狗续约和租约检查的redis分布式锁
+ * <p>
+ * 加锁成功时从 key + _fence 计数器取得一个单调递增的token，作为锁的值；回调执行期间每 1/3 租约续约一次。
+ * 续约失败（锁已过期被其他节点拿走）后 {@link Fence#check()} 会拒绝旧持有者继续补偿。
+ * <p>
+ * 协调者的存储不校验token，这只是租约检查而不是严格的fencing：{@link Fence#validate()} 每页消息读取一次锁的值，
+ * 每条消息只检查本地的丢失标记，不额外访问redis；检查通过后锁仍可能过期，
+ * 最坏情况下两个节点在一个租约内重复投递同一批消息，由下游的幂等保证正确性
+ * <p>
+ * 开启 coordinator.cluster.enabled 时锁和计数器使用同一个hash tag，在redis cluster中落在同一个slot上，脚本可以同时访问；
+ * 单机模式下保持原来的key不变
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Slf4j
+@Component
+public class FencedLock implements DisposableBean {
+
+    /**
+     * 锁空闲时递增fencing计数器并以新token加锁，锁被占用返回-1
+     */
+    private static final DefaultRedisScript<Long> ACQUIRE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('EXISTS', KEYS[1]) == 1 then return -1 end " +
+                    "local token = redis.call('INCR', KEYS[2]) " +
+                    "redis.call('SET', KEYS[1], token, 'PX', ARGV[1]) " +
+                    "return token", Long.class);
+
+    /**
+     * 只有仍是自己持有时才续约
+     */
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then " +
+                    "return redis.call('PEXPIRE', KEYS[1], ARGV[2]) " +
+                    "end " +
+                    "return 0", Long.class);
+
+    /**
+     * 只有仍是自己持有时才释放
+     */
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then " +
+                    "return redis.call('DEL', KEYS[1]) " +
+                    "end " +
+                    "return 0", Long.class);
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    /**
+     * 是否使用redis cluster的key布局
+     */
+    @Value("${coordinator.cluster.enabled:false}")
+    private boolean cluster;
+
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "fenced-lock-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 加锁并执行回调，锁被其他节点持有时不执行直接返回null
+     *
+     * @param key         锁，集群模式下不含hash tag时整个key作为hash tag
+     * @param leaseMillis 租约时长，回调执行期间自动续约
+     * @param callback    回调
+     */
+    public <T> T lock(String key, long leaseMillis, FencedCallable<T> callback) throws Exception {
+        if (leaseMillis < 3) {
+            throw new IllegalArgumentException(String.format("Lease millis can't be less than 3, leaseMillis: %d", leaseMillis));
+        }
+        String lockKey = !cluster || key.indexOf('{') >= 0 ? key : "{" + key + "}";
+        Long token = redisTemplate.execute(ACQUIRE_SCRIPT, Arrays.asList(lockKey, lockKey + "_fence"),
+                String.valueOf(leaseMillis));
+        if (token == null || token < 0) {
+            return null;
+        }
+        Fence fence = new Fence(lockKey, token);
+        long period = leaseMillis / 3;
+        ScheduledFuture<?> renewal = watchdog.scheduleAtFixedRate(() -> renew(fence, leaseMillis),
+                period, period, TimeUnit.MILLISECONDS);
+        try {
+            return callback.call(fence);
+        } finally {
+            renewal.cancel(false);
+            release(fence);
+        }
+    }
+
+    private void renew(Fence fence, long leaseMillis) {
+        if (fence.isLost()) {
+            return;
+        }
+        try {
+            Long renewed = redisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(fence.getKey()),
+                    String.valueOf(fence.getToken()), String.valueOf(leaseMillis));
+            if (renewed == null || renewed != 1L) {
+                fence.lost();
+                log.error("Lock lost, key: {}, token: {}", fence.getKey(), fence.getToken());
+            }
+        } catch (Exception e) {
+            //无法确认续约成功，锁可能已经过期并被其他节点持有，与续约失败一样停止
+            fence.lost();
+            log.error("Lock renew error, treat lock as lost, key: {}, token: {}", fence.getKey(), fence.getToken(), e);
+        }
+    }
+
+    private void release(Fence fence) {
+        try {
+            redisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(fence.getKey()), String.valueOf(fence.getToken()));
+        } catch (Exception e) {
+            log.error("Lock release error, key: {}, token: {}", fence.getKey(), fence.getToken(), e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        watchdog.shutdownNow();
+    }
+
+    /**
+     * 持有锁期间执行的回调
+     */
+    @FunctionalInterface
+    public interface FencedCallable<T> {
+
+        T call(Fence fence) throws Exception;
+    }
+
+    /**
+     * 锁已经丢失，旧持有者的操作被拒绝
+     */
+    public static class StaleLockException extends IllegalStateException {
+
+        public StaleLockException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 一次加锁取得的fencing token
+     */
+    public class Fence {
+
+        private final String key;
+
+        private final long token;
+
+        private volatile boolean lost;
+
+        private Fence(String key, long token) {
+            this.key = key;
+            this.token = token;
+        }
+
+        /**
+         * 租约检查，每页消息调用一次：看门狗没有发现锁丢失，且redis中的锁值仍是自己的token（没有更新的token发出）
+         *
+         * @throws StaleLockException 锁已经被其他节点持有
+         */
+        public void validate() {
+            if (!lost && String.valueOf(token).equals(redisTemplate.opsForValue().get(key))) {
+                return;
+            }
+            lost = true;
+            throw stale();
+        }
+
+        /**
+         * 只检查本地的丢失标记（看门狗续约失败或上一次 {@link #validate()} 失败），不访问redis，每条消息调用一次
+         *
+         * @throws StaleLockException 锁已经丢失
+         */
+        public void check() {
+            if (lost) {
+                throw stale();
+            }
+        }
+
+        private StaleLockException stale() {
+            return new StaleLockException(String.format("Stale lock holder rejected, key: %s, token: %d", key, token));
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getToken() {
+            return token;
+        }
+
+        public boolean isLost() {
+            return lost;
+        }
+
+        private void lost() {
+            lost = true;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package top.arkstack.shine.mq.demo.daemon;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import top.arkstack.shine.mq.bean.EventMessage;
+import top.arkstack.shine.mq.coordinator.Coordinator;
+import top.arkstack.shine.mq.demo.coordinator.AttemptCountingCoordinator;
+
+import javax.annotation.PostConstruct;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * ready消息补偿引擎
+ * <p>
+ * 在有界线程池中并发重新投递ready消息，同时在途的投递数不超过 maxInFlight，
+ * 单条投递慢只会占用一个名额，不会阻塞其他消息。
+ * 每次补偿有截止时间，超过截止时间后不再派发新的消息，剩余的留给下一轮；
+ * 截止时间到达时仍在排队的投递被取消，正在执行的投递被中断，等它们结束后才返回，锁释放之后不会再有投递。
+ * 宽限时间内补偿过、可能还在等待mq确认的消息会被跳过，见 {@link CompensatedCache}；
+ * 只有真正投递过的消息才计入协调者的补偿次数，见 {@link AttemptCountingCoordinator}
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Slf4j
+@Component
+public class ReadyCompensator implements DisposableBean {
+
+    /**
+     * 投递线程数
+     */
+    @Value("${daemon.compensate.threads:8}")
+    private int threads;
+
+    /**
+     * 同时在途的投递数
+     */
+    @Value("${daemon.compensate.max-in-flight:64}")
+    private int maxInFlight;
+
+    /**
+     * 截止时间到达后取消在途的投递，最多再等待它们结束的时间
+     */
+    @Value("${daemon.compensate.cancel-timeout-millis:5000}")
+    private long cancelTimeoutMillis;
+
+    @Autowired
+    private CompensatedCache compensatedCache;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        if (threads < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Compensate threads and max in flight must be positive, threads: %d, maxInFlight: %d",
+                    threads, maxInFlight));
+        }
+        AtomicInteger index = new AtomicInteger();
+        //线程池队列中的任务数受在途信号量限制，不会无限增长
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "ready-compensator-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 开始一次补偿，每条消息投递后在attempts中计数
+     *
+     * @param coordinator 协调者
+     * @param attempts    记录补偿次数的协调者，null即不计数
+     * @param deadline    截止时间，一般为加锁时间 + 一次补偿最长的执行时间
+     */
+    public Session open(Coordinator coordinator, AttemptCountingCoordinator attempts, long deadline) {
+        return new Session(coordinator, attempts, deadline);
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 一次补偿，可以分多页提交，最后调用 {@link #await()} 等待在途的投递完成
+     */
+    public class Session {
+
+        private final Coordinator coordinator;
+
+        private final AttemptCountingCoordinator attempts;
+
+        private final long deadline;
+
+        private final Semaphore inFlight = new Semaphore(maxInFlight);
+
+        private final AtomicInteger sent = new AtomicInteger();
+
+        private final Queue<EventMessage> failed = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger skipped = new AtomicInteger();
+
+        private int deduplicated;
+
+        /**
+         * 截止时间到达后不再执行排队中的投递
+         */
+        private volatile boolean cancelled;
+
+        /**
+         * 正在执行投递的线程，取消时中断
+         */
+        private final Set<Thread> sending = new HashSet<>();
+
+        private Session(Coordinator coordinator, AttemptCountingCoordinator attempts, long deadline) {
+            this.coordinator = coordinator;
+            this.attempts = attempts;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 提交一页ready消息，协调者没有提供msgId时以消息内容作为去重标识，也无法计数
+         */
+        public void submit(List<EventMessage> ready) throws InterruptedException {
+            submit(ready.stream().map(CompensatedCache::contentKey).collect(Collectors.toList()), ready, false);
+        }
+
+        /**
+         * 提交一页ready消息，在途数已满时等待空出名额，超过截止时间的消息和最近补偿过的消息直接跳过
+         *
+         * @param ids   与ready按下标一一对应的msgId，作为去重标识
+         * @param ready ready消息
+         */
+        public void submit(List<String> ids, List<EventMessage> ready) throws InterruptedException {
+            submit(ids, ready, attempts != null);
+        }
+
+        private void submit(List<String> ids, List<EventMessage> ready, boolean count) throws InterruptedException {
+            for (int i = 0; i < ready.size(); i++) {
+                EventMessage r = ready.get(i);
+                String id = ids.get(i);
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || !inFlight.tryAcquire(remaining, TimeUnit.MILLISECONDS)) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                if (!compensatedCache.tryMark(id)) {
+                    inFlight.release();
+                    deduplicated++;
+                    continue;
+                }
+                try {
+                    executor.execute(() -> {
+                        if (!begin()) {
+                            //已经取消，没有投递，留给下一轮
+                            compensatedCache.unmark(id);
+                            skipped.incrementAndGet();
+                            inFlight.release();
+                            return;
+                        }
+                        //超时的ready的消息，就直接捞起发送到消息中间件，因为只要是ready消息持久化到协调者，那就说明服务A的任务已经完成。
+                        //因为消息到mq是异步通知的，所以补偿的频率过高会造成消息重复，下游服务最好能保证幂等性
+                        //锁丢失后被拒绝的消息没有投递，不计补偿次数
+                        boolean counted = count;
+                        try {
+                            coordinator.compensateReady(r);
+                            sent.incrementAndGet();
+                            log.info("重新投递消息： {}", r);
+                        } catch (FencedLock.StaleLockException e) {
+                            counted = false;
+                            failed.add(r);
+                            compensatedCache.unmark(id);
+                            log.warn("Lock lost, message left to next round: {}", r);
+                        } catch (Exception e) {
+                            failed.add(r);
+                            compensatedCache.unmark(id);
+                            log.error("Message failed to be sent : ", e);
+                        } finally {
+                            end();
+                            if (counted) {
+                                attempted(id);
+                            }
+                            inFlight.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    //线程池已经关闭（如应用停止），名额和去重记录都要归还，消息留给下一轮
+                    inFlight.release();
+                    compensatedCache.unmark(id);
+                    skipped.incrementAndGet();
+                    log.warn("Compensate executor rejected message, skip it: {}", r);
+                }
+            }
+        }
+
+        /**
+         * 开始投递，已经取消时返回false
+         */
+        private boolean begin() {
+            synchronized (sending) {
+                if (cancelled) {
+                    return false;
+                }
+                sending.add(Thread.currentThread());
+                return true;
+            }
+        }
+
+        /**
+         * 投递结束，清除可能由取消留下的中断状态，不影响线程池中的下一个任务
+         */
+        private void end() {
+            synchronized (sending) {
+                sending.remove(Thread.currentThread());
+                Thread.interrupted();
+            }
+        }
+
+        /**
+         * 取消排队中的投递，中断正在执行的投递
+         */
+        private void cancel() {
+            synchronized (sending) {
+                cancelled = true;
+                sending.forEach(Thread::interrupt);
+            }
+        }
+
+        /**
+         * 计数失败不影响补偿，最多少计一次
+         */
+        private void attempted(String msgId) {
+            try {
+                attempts.readyAttempted(msgId);
+            } catch (Exception e) {
+                log.warn("Count compensate attempt error, msgId: {}", msgId, e);
+            }
+        }
+
+        /**
+         * 等待在途的投递完成，最多等到截止时间；之后取消剩余的投递，并等待正在执行的投递结束，
+         * 调用方在返回之后才释放锁
+         *
+         * @return 本次补偿结果
+         */
+        public CompensateResult await() throws InterruptedException {
+            long remaining = Math.max(0L, deadline - System.currentTimeMillis());
+            int pending = 0;
+            if (!inFlight.tryAcquire(maxInFlight, remaining, TimeUnit.MILLISECONDS)) {
+                cancel();
+                if (!inFlight.tryAcquire(maxInFlight, cancelTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    pending = maxInFlight - inFlight.availablePermits();
+                    log.error("Ready compensation sends still running after cancel, pending: {}", pending);
+                } else {
+                    inFlight.release(maxInFlight);
+                }
+            } else {
+                inFlight.release(maxInFlight);
+            }
+            return new CompensateResult(sent.get(), skipped.get(), deduplicated, pending, failed);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package top.arkstack.shine.mq.demo.daemon;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import top.arkstack.shine.mq.demo.dao.RouteConfigMapper;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * route_config 的回查，回查id即数据库id，一批只查一次数据库
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Component
+public class RouteConfigCheckBackResolver implements CheckBackResolver {
+
+    @Autowired
+    private RouteConfigMapper mapper;
+
+    @Override
+    public String bizId() {
+        return "route_config";
+    }
+
+    @Override
+    public Map<String, Object> resolve(List<String> checkBackIds) {
+        List<Long> ids = checkBackIds.stream().map(Long::valueOf).collect(Collectors.toList());
+        Map<String, Object> done = new HashMap<>(ids.size());
+        //如果进行投递,有需要传递信息，则需要重新加上，这里演示继续投递，模拟之前的data
+        mapper.selectByPrimaryKeys(ids).forEach(config -> done.put(config.getId().toString(), config.getPath()));
+        return done;
+    }
+}
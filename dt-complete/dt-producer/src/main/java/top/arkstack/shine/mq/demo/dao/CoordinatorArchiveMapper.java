@@ -0,0 +1,17 @@
+package top.arkstack.shine.mq.demo.dao;
+
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import top.arkstack.shine.mq.demo.dao.model.CoordinatorArchive;
+
+import java.util.List;
+
+/**
+ * @author 7le
+ * @version 1.0.0
+ */
+@Mapper
+public interface CoordinatorArchiveMapper {
+
+    int insertBatch(@Param("records") List<CoordinatorArchive> records);
+}
@@ -0,0 +1,19 @@
+package top.arkstack.shine.mq.demo.dao;
+
+import org.apache.ibatis.annotations.Mapper;
+import top.arkstack.shine.mq.demo.dao.model.IdSegment;
+
+/**
+ * @author 7le
+ * @version 1.0.0
+ */
+@Mapper
+public interface IdSegmentMapper {
+
+    IdSegment selectByPrimaryKey(String bizTag);
+
+    /**
+     * max_id 前进一个步长，即占用号段 (max_id, max_id + step]
+     */
+    int updateMaxIdByPrimaryKey(String bizTag);
+}
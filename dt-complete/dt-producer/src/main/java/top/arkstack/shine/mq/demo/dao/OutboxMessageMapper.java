@@ -0,0 +1,26 @@
+package top.arkstack.shine.mq.demo.dao;
+
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import top.arkstack.shine.mq.demo.dao.model.OutboxMessage;
+
+import java.util.List;
+
+/**
+ * @author 7le
+ * @version 1.0.0
+ */
+@Mapper
+public interface OutboxMessageMapper {
+
+    int insert(OutboxMessage record);
+
+    /**
+     * 按主键游标分页查询待发送的消息，走 (status, id) 索引
+     */
+    List<OutboxMessage> selectPending(@Param("afterId") long afterId, @Param("limit") int limit);
+
+    int deleteByPrimaryKeys(@Param("ids") List<Long> ids);
+
+    int updateSentByPrimaryKeys(@Param("ids") List<Long> ids);
+}
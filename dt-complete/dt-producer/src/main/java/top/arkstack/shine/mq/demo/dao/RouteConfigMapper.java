@@ -1,9 +1,12 @@
 package top.arkstack.shine.mq.demo.dao;
 
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
 import org.springframework.stereotype.Repository;
 import top.arkstack.shine.mq.demo.dao.model.RouteConfig;
 
+import java.util.List;
+
 /**
  * @author 7le
  * @version 1.0.0
@@ -15,10 +18,14 @@ public interface RouteConfigMapper {
 
     int insert(RouteConfig record);
 
+    int insertBatch(@Param("records") List<RouteConfig> records);
+
     int insertSelective(RouteConfig record);
 
     RouteConfig selectByPrimaryKey(Long id);
 
+    List<RouteConfig> selectByPrimaryKeys(@Param("ids") List<Long> ids);
+
     int updateByPrimaryKeySelective(RouteConfig record);
 
     int updateByPrimaryKey(RouteConfig record);
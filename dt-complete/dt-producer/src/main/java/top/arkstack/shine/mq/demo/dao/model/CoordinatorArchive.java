@@ -0,0 +1,54 @@
+package top.arkstack.shine.mq.demo.dao.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 超过保留期限、从协调者中移除的消息
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CoordinatorArchive {
+
+    /**
+     * prepare 或 ready
+     */
+    private String type;
+
+    /**
+     * 消息所在的redis hash
+     */
+    private String msgKey;
+
+    /**
+     * checkBackId 或 msgId
+     */
+    private String msgId;
+
+    private String bizId;
+
+    /**
+     * 写入协调者的时间
+     */
+    private Long writeTime;
+
+    /**
+     * 已经补偿（回查）的次数
+     */
+    private Integer attempts;
+
+    /**
+     * max-age 或 max-attempts
+     */
+    private String reason;
+
+    /**
+     * 消息的json
+     */
+    private String payload;
+}
@@ -0,0 +1,29 @@
+package top.arkstack.shine.mq.demo.dao.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+
+/**
+ * 号段
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class IdSegment {
+
+    private String bizTag;
+
+    private Long maxId;
+
+    private Integer step;
+
+    private String description;
+
+    private Date updateTime;
+}
@@ -0,0 +1,38 @@
+package top.arkstack.shine.mq.demo.dao.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+
+/**
+ * 发件箱消息，与业务数据在同一个本地事务中写入
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OutboxMessage {
+
+    private Long id;
+
+    private String msgId;
+
+    private String bizId;
+
+    private String exchange;
+
+    private String routingKey;
+
+    private String payload;
+
+    /**
+     * 0 待发送 1 已发送
+     */
+    private Integer status;
+
+    private Date createTime;
+}
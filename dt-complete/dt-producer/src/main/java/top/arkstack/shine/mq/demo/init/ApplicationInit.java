@@ -1,10 +1,18 @@
 package top.arkstack.shine.mq.demo.init;
 
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
+import org.springframework.core.env.Environment;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
+import top.arkstack.shine.mq.demo.util.CachedTimeSource;
+import top.arkstack.shine.mq.demo.util.IdLayout;
 import top.arkstack.shine.mq.demo.util.SnowflakeIdGenerator;
+import top.arkstack.shine.mq.demo.util.SystemTimeSource;
+import top.arkstack.shine.mq.demo.util.TimeSource;
+import top.arkstack.shine.mq.demo.util.WorkerIdLease;
 
 /**
  * spring 容器加载完毕后调用
@@ -13,16 +21,63 @@ import top.arkstack.shine.mq.demo.util.SnowflakeIdGenerator;
  * @version 1.0.0
  */
 @Component
-public class ApplicationInit implements ApplicationContextAware {
+public class ApplicationInit implements ApplicationContextAware, DisposableBean {
 
+    private WorkerIdLease workerIdLease;
+
+    private CachedTimeSource cachedTimeSource;
 
     /**
      * 初始化SnowflakeIdGenerator
      */
     @Override
     public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
-        //如果是集群下，可以用分布式锁保证各节点workId自增唯一
-        Long workId = 1L;
-        SnowflakeIdGenerator.init(workId);
+        Environment env = applicationContext.getEnvironment();
+        //位布局，默认 41/10/12，节点少而单节点ID量大时可以用机器id位换序列位
+        IdLayout layout = new IdLayout(
+                env.getProperty("snowflake.start-time", Long.class, IdLayout.DEFAULT.getStartTime()),
+                env.getProperty("snowflake.worker-id-bits", Integer.class, IdLayout.DEFAULT.getWorkerIdBits()),
+                env.getProperty("snowflake.sequence-bits", Integer.class, IdLayout.DEFAULT.getSequenceBits()));
+        //分片通道位数，单节点ID生成量超过每毫秒4096时开启，0即不分片
+        Integer laneBits = env.getProperty("snowflake.lane-bits", Integer.class, 0);
+        //时钟回退或序列溢出时最多借用的未来毫秒数，0即严格模式，时钟回退直接抛出异常
+        Long maxBorrowMillis = env.getProperty("snowflake.max-borrow-millis", Long.class, 0L);
+        //时间源，cached 由后台线程刷新时间，生成ID时不再每次调用 System.currentTimeMillis()
+        TimeSource timeSource = SystemTimeSource.INSTANCE;
+        if ("cached".equals(env.getProperty("snowflake.time-source"))) {
+            cachedTimeSource = new CachedTimeSource();
+            timeSource = cachedTimeSource;
+        }
+        //如果是集群下，通过redis租约保证各节点workId唯一，租约失效后拒绝生成ID
+        if (env.getProperty("snowflake.worker-id-lease.enabled", Boolean.class, false)) {
+            workerIdLease = new WorkerIdLease(applicationContext.getBean(StringRedisTemplate.class),
+                    env.getProperty("snowflake.worker-id-lease.key-prefix", "snowflake_worker_id_"),
+                    env.getProperty("snowflake.worker-id-lease.lease-millis", Long.class, 30_000L));
+            long workId = workerIdLease.acquire(SnowflakeIdGenerator.maxWorkerId(layout, laneBits));
+            SnowflakeIdGenerator.init(layout, workId, laneBits, maxBorrowMillis, timeSource);
+            SnowflakeIdGenerator generator = SnowflakeIdGenerator.getInstance();
+            //从之前的持有者生成过的最大时间戳之后开始分配
+            generator.rebind(workId, workerIdLease.getLastTimestamp());
+            generator.setWorkerIdGuard(workerIdLease::isHeld);
+            //租约丢失后重新占用workerId时，生成器随之切换，续约时记录生成过的最大时间戳
+            workerIdLease.setWorkerIdListener(generator::rebind);
+            workerIdLease.setLastTimestampSupplier(generator::getLastTimestamp);
+        } else {
+            Long workId = 1L;
+            SnowflakeIdGenerator.init(layout, workId, laneBits, maxBorrowMillis, timeSource);
+        }
+    }
+
+    /**
+     * 关闭时释放workerId租约，停止时间源刷新线程
+     */
+    @Override
+    public void destroy() {
+        if (workerIdLease != null) {
+            workerIdLease.release();
+        }
+        if (cachedTimeSource != null) {
+            cachedTimeSource.close();
+        }
     }
 }
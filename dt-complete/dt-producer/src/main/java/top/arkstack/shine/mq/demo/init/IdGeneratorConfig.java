@@ -0,0 +1,34 @@
+package top.arkstack.shine.mq.demo.init;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.transaction.support.TransactionTemplate;
+import top.arkstack.shine.mq.demo.dao.IdSegmentMapper;
+import top.arkstack.shine.mq.demo.util.IdGenerator;
+import top.arkstack.shine.mq.demo.util.SegmentIdGenerator;
+import top.arkstack.shine.mq.demo.util.SnowflakeIdGenerator;
+
+/**
+ * ID生成器配置
+ * <p>
+ * id-generator.type: snowflake（默认，本地生成）或 segment（数据库号段）
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Configuration
+public class IdGeneratorConfig {
+
+    @Bean
+    @DependsOn("applicationInit")
+    public IdGenerator idGenerator(@Value("${id-generator.type:snowflake}") String type,
+                                   @Value("${id-generator.segment.biz-tag:route_config}") String bizTag,
+                                   IdSegmentMapper mapper, TransactionTemplate transactionTemplate) {
+        if ("segment".equals(type)) {
+            return new SegmentIdGenerator(bizTag, mapper, transactionTemplate);
+        }
+        return SnowflakeIdGenerator.getInstance();
+    }
+}
@@ -1,15 +1,26 @@
 package top.arkstack.shine.mq.demo.producer;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import top.arkstack.shine.mq.annotation.DistributedTrans;
 import top.arkstack.shine.mq.bean.PrepareMessage;
 import top.arkstack.shine.mq.bean.TransferBean;
 import top.arkstack.shine.mq.coordinator.Coordinator;
+import top.arkstack.shine.mq.demo.coordinator.BatchCoordinator;
+import top.arkstack.shine.mq.demo.coordinator.OutboxCoordinator;
 import top.arkstack.shine.mq.demo.dao.RouteConfigMapper;
 import top.arkstack.shine.mq.demo.dao.model.RouteConfig;
-import top.arkstack.shine.mq.demo.util.SnowflakeIdGenerator;
+import top.arkstack.shine.mq.demo.util.IdGenerator;
+import top.arkstack.shine.mq.demo.util.MicroBatcher;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  * 分布式事务demo 自行配置对应参数
@@ -20,35 +31,113 @@ import top.arkstack.shine.mq.demo.util.SnowflakeIdGenerator;
 @Component
 public class DistributedTran {
 
-    @Autowired
+    @Resource(name = "spoolingCoordinator")
     private Coordinator coordinator;
 
     @Autowired
     private RouteConfigMapper mapper;
 
+    @Autowired
+    private IdGenerator idGenerator;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private OutboxCoordinator outboxCoordinator;
+
+    /**
+     * 是否合并并发的事务，合并后一批事务共用一次协调者写入和一个数据库事务
+     */
+    @Value("${distributed-tran.batch.enabled:false}")
+    private boolean batchEnabled;
+
+    @Value("${distributed-tran.batch.window-millis:2}")
+    private long batchWindowMillis;
+
+    @Value("${distributed-tran.batch.max-size:64}")
+    private int batchMaxSize;
+
+    private MicroBatcher<Long, TransferBean> batcher;
+
+    @PostConstruct
+    public void init() {
+        if (batchEnabled) {
+            batcher = new MicroBatcher<>("distributed-tran-batcher", batchMaxSize, batchWindowMillis, this::transactionBatch);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (batcher != null) {
+            batcher.close();
+        }
+    }
+
     /**
      * 服务A 的任务
      * <p>
      * coordinator 可以自行实现，或者使用默认提供的
      */
     @DistributedTrans(exchange = "route_config", routeKey = "route_config_key", bizId = "route_config",
-            coordinator = "redisCoordinator")
+            coordinator = "spoolingCoordinator")
     //@Transactional(rollbackFor = Exception.class)
     public TransferBean transaction() {
         //设置回查id 需要唯一 （可以用数据库的id） 以防出现错误，
-        Long checkBackId = SnowflakeIdGenerator.getInstance().nextNormalId();
+        Long checkBackId = idGenerator.nextNormalId();
+        if (batcher != null) {
+            //和同一时间窗口内的其他事务合并执行，拿到自己的TransferBean
+            return batcher.submit(checkBackId);
+        }
         //prepare需要checkBackId（回查id）来查询服务A任务状态，bizId,exchangeName和routingKey是重发的必要信息
         // checkBackId必须保证唯一性，如PK主键、非主键也可以，如系统全局唯一订单号
-        coordinator.setPrepare(new PrepareMessage(checkBackId.toString(), "route_config",
-                "route_config", "route_config_key"));
+        coordinator.setPrepare(prepare(checkBackId));
 
         //执行操作
-        RouteConfig routeConfig = new RouteConfig(checkBackId, "/shine/**", "spring-mq",
-                null, false, true, true, null);
+        RouteConfig routeConfig = routeConfig(checkBackId);
         mapper.insert(routeConfig);
         //用来模拟任务A成功，但是没有投递到mq(就是测试prepare消息的补偿)
         //int i = 1 / 0;
         //需要用TransferBean包装下，checkBackId是必须的，data可以为null
         return new TransferBean(checkBackId.toString(), routeConfig.getPath());
     }
+
+    /**
+     * 服务A 的任务，使用发件箱发送消息
+     * <p>
+     * 消息和业务数据在同一个本地事务中写入，由 OutboxRelay 发送，不需要prepare消息和回查
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public TransferBean transactionOutbox() {
+        Long checkBackId = idGenerator.nextNormalId();
+        RouteConfig routeConfig = routeConfig(checkBackId);
+        mapper.insert(routeConfig);
+        TransferBean transferBean = new TransferBean(checkBackId.toString(), routeConfig.getPath());
+        outboxCoordinator.save(checkBackId.toString(), "route_config", "route_config", "route_config_key", transferBean);
+        return transferBean;
+    }
+
+    /**
+     * 合并执行一批任务：一次写入全部prepare消息，再在一个数据库事务中批量插入
+     */
+    private List<TransferBean> transactionBatch(List<Long> checkBackIds) {
+        List<PrepareMessage> prepare = checkBackIds.stream().map(this::prepare).collect(Collectors.toList());
+        if (coordinator instanceof BatchCoordinator) {
+            ((BatchCoordinator) coordinator).setPrepare(prepare);
+        } else {
+            prepare.forEach(coordinator::setPrepare);
+        }
+        List<RouteConfig> routeConfigs = checkBackIds.stream().map(this::routeConfig).collect(Collectors.toList());
+        transactionTemplate.execute(status -> mapper.insertBatch(routeConfigs));
+        return routeConfigs.stream().map(r -> new TransferBean(r.getId().toString(), r.getPath()))
+                .collect(Collectors.toList());
+    }
+
+    private PrepareMessage prepare(Long checkBackId) {
+        return new PrepareMessage(checkBackId.toString(), "route_config", "route_config", "route_config_key");
+    }
+
+    private RouteConfig routeConfig(Long checkBackId) {
+        return new RouteConfig(checkBackId, "/shine/**", "spring-mq", null, false, true, true, null);
+    }
 }
@@ -0,0 +1,273 @@
+package top.arkstack.shine.mq.demo.publisher;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import lombok.extern.slf4j.Slf4j;
+import top.arkstack.shine.mq.demo.util.ConfirmBatcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 滑动窗口异步确认的消息发送
+ * <p>
+ * 每个channel开启publisher confirm，按发送序号记录未确认的消息，同一时间未确认的消息数不超过 maxInFlight，
+ * 发送不等待确认。broker的ack/nack（包括 multiple=true 一次确认多条）到达后，
+ * 由 {@link ConfirmBatcher} 把确认结果合并成批交给回调，协调者的状态变更因此可以批量执行。
+ * channel关闭、发送失败和超过确认时限的消息按nack处理
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Slf4j
+public class ConfirmWindowPublisher implements AutoCloseable {
+
+    private final Connection connection;
+
+    private final Window[] windows;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final ConfirmBatcher confirms;
+
+    private volatile boolean closed;
+
+    /**
+     * @param connectionFactory rabbitmq连接，单独建立一个连接
+     * @param channels          channel数，每个channel一个确认窗口
+     * @param maxInFlight       每个channel未确认的消息数上限
+     * @param callback          批量确认回调
+     */
+    public ConfirmWindowPublisher(ConnectionFactory connectionFactory, int channels, int maxInFlight,
+                                  ConfirmBatcher.Callback callback) throws IOException, TimeoutException {
+        if (channels < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Channels and max in flight must be positive, channels: %d, maxInFlight: %d", channels, maxInFlight));
+        }
+        this.connection = connectionFactory.newConnection("confirm-window-publisher");
+        this.windows = new Window[channels];
+        for (int i = 0; i < channels; i++) {
+            windows[i] = new Window(maxInFlight);
+        }
+        this.confirms = new ConfirmBatcher("confirm-window-flusher", callback);
+    }
+
+    /**
+     * 发送一条消息，不等待确认；窗口已满时最多等待 timeoutMillis 直到有消息被确认
+     *
+     * @param id            消息标识，确认后回调
+     * @param exchange      exchange
+     * @param routingKey    routingKey
+     * @param properties    消息属性
+     * @param body          消息体
+     * @param timeoutMillis 窗口已满时最多等待的时间
+     * @return 窗口一直是满的、没有发送时返回false
+     */
+    public boolean publish(String id, String exchange, String routingKey, AMQP.BasicProperties properties,
+                           byte[] body, long timeoutMillis) throws IOException, InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Confirm window publisher is closed");
+        }
+        return windows[Math.floorMod(next.getAndIncrement(), windows.length)]
+                .publish(id, exchange, routingKey, properties, body, timeoutMillis);
+    }
+
+    /**
+     * 发送后超过 timeoutMillis 仍未确认的消息按nack处理并归还窗口，之后到达的确认被忽略
+     *
+     * @return 按nack处理的消息数
+     */
+    public int expire(long timeoutMillis) {
+        long before = System.currentTimeMillis() - timeoutMillis;
+        int expired = 0;
+        for (Window window : windows) {
+            expired += window.expire(before);
+        }
+        return expired;
+    }
+
+    /**
+     * 所有窗口中未确认的消息数
+     */
+    public int getInFlight() {
+        int inFlight = 0;
+        for (Window window : windows) {
+            inFlight += window.inFlight();
+        }
+        return inFlight;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Window window : windows) {
+            window.close();
+        }
+        try {
+            connection.close();
+        } catch (Exception e) {
+            log.error("Close connection error", e);
+        }
+        confirms.close();
+    }
+
+    /**
+     * 未确认的消息
+     */
+    private static final class Outstanding {
+
+        final String id;
+
+        final long publishTime;
+
+        Outstanding(String id, long publishTime) {
+            this.id = id;
+            this.publishTime = publishTime;
+        }
+    }
+
+    /**
+     * 一个channel的确认窗口，channel重建后使用新的序号表，旧channel上未确认的消息按nack处理
+     */
+    private class Window {
+
+        private final Semaphore permits;
+
+        private Channel channel;
+
+        /**
+         * 当前channel的 发送序号 -> 消息
+         */
+        private volatile NavigableMap<Long, Outstanding> outstanding = new ConcurrentSkipListMap<>();
+
+        Window(int maxInFlight) {
+            this.permits = new Semaphore(maxInFlight);
+        }
+
+        boolean publish(String id, String exchange, String routingKey, AMQP.BasicProperties properties,
+                        byte[] body, long timeoutMillis) throws IOException, InterruptedException {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            //取序号和发送必须原子执行
+            synchronized (this) {
+                boolean tracked = false;
+                try {
+                    Channel ch = channel();
+                    outstanding.put(ch.getNextPublishSeqNo(), new Outstanding(id, System.currentTimeMillis()));
+                    tracked = true;
+                    ch.basicPublish(exchange, routingKey, properties, body);
+                    return true;
+                } catch (IOException | RuntimeException e) {
+                    if (!tracked) {
+                        permits.release();
+                    }
+                    //发送失败后channel不可用，关闭channel，已发送未确认的消息统一按nack处理
+                    close();
+                    throw e;
+                }
+            }
+        }
+
+        int inFlight() {
+            return outstanding.size();
+        }
+
+        private Channel channel() throws IOException {
+            if (channel == null || !channel.isOpen()) {
+                NavigableMap<Long, Outstanding> pending = new ConcurrentSkipListMap<>();
+                Channel ch = connection.createChannel();
+                ch.confirmSelect();
+                ch.addConfirmListener(new ConfirmListener() {
+                    @Override
+                    public void handleAck(long deliveryTag, boolean multiple) {
+                        confirm(pending, true, deliveryTag, multiple);
+                    }
+
+                    @Override
+                    public void handleNack(long deliveryTag, boolean multiple) {
+                        confirm(pending, false, deliveryTag, multiple);
+                    }
+                });
+                //channel异常关闭（如broker重启），未确认的消息不会再收到确认
+                ch.addShutdownListener(cause -> confirm(pending, false, Long.MAX_VALUE, true));
+                channel = ch;
+                outstanding = pending;
+            }
+            return channel;
+        }
+
+        /**
+         * 确认回调、channel关闭、发送失败和超时可能同时确认同一批消息，每条记录逐条原子地移除，只有移除成功的一方回调，
+         * 同一条消息不会既ack又nack，也不会重复归还窗口
+         */
+        private void confirm(NavigableMap<Long, Outstanding> pending, boolean ack, long deliveryTag, boolean multiple) {
+            List<String> ids;
+            if (multiple) {
+                ids = new ArrayList<>();
+                Map.Entry<Long, Outstanding> first;
+                while ((first = pending.firstEntry()) != null && first.getKey() <= deliveryTag) {
+                    if (pending.remove(first.getKey(), first.getValue())) {
+                        ids.add(first.getValue().id);
+                    }
+                }
+            } else {
+                Outstanding o = pending.remove(deliveryTag);
+                ids = new ArrayList<>(1);
+                if (o != null) {
+                    ids.add(o.id);
+                }
+            }
+            release(ack, ids);
+        }
+
+        /**
+         * 序号按发送顺序递增，从头移除发送时间早于before的消息
+         */
+        int expire(long before) {
+            NavigableMap<Long, Outstanding> pending = outstanding;
+            List<String> ids = new ArrayList<>();
+            Map.Entry<Long, Outstanding> first;
+            while ((first = pending.firstEntry()) != null && first.getValue().publishTime < before) {
+                if (pending.remove(first.getKey(), first.getValue())) {
+                    ids.add(first.getValue().id);
+                }
+            }
+            release(false, ids);
+            return ids.size();
+        }
+
+        private void release(boolean ack, List<String> ids) {
+            if (!ids.isEmpty()) {
+                permits.release(ids.size());
+                confirms.add(ack, ids);
+            }
+        }
+
+        /**
+         * 关闭channel，未确认的消息全部按nack处理并归还窗口
+         */
+        synchronized void close() {
+            if (channel != null && channel.isOpen()) {
+                try {
+                    channel.close();
+                } catch (Exception e) {
+                    log.warn("Close channel error", e);
+                }
+            }
+            channel = null;
+            confirm(outstanding, false, Long.MAX_VALUE, true);
+        }
+    }
+}
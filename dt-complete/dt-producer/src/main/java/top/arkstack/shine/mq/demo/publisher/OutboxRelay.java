@@ -0,0 +1,219 @@
+package top.arkstack.shine.mq.demo.publisher;
+
+import com.rabbitmq.client.AMQP;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageDeliveryMode;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import top.arkstack.shine.mq.demo.daemon.FencedLock;
+import top.arkstack.shine.mq.demo.dao.OutboxMessageMapper;
+import top.arkstack.shine.mq.demo.dao.model.OutboxMessage;
+import top.arkstack.shine.mq.demo.util.ConfirmBatcher;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 发件箱消息的发送
+ * <p>
+ * 持有分布式锁的节点按主键游标分批读取待发送的消息，通过 {@link ConfirmWindowPublisher} 发送，不等待确认；
+ * broker确认（ack）后才按批删除（或标记为已发送）。被拒绝（nack）、channel关闭前没有确认
+ * 和超过 confirm-timeout-millis 仍未确认的消息保留在表中，下一轮重新发送，
+ * 消息在表中保留到被确认为止，所以不需要回查，也不需要Daemon补偿；下游需要保证幂等。
+ * <p>
+ * 消息体和消息属性由上下文中 RabbitTemplate 的 MessageConverter 生成，与通过该 RabbitTemplate 发送的消息一致。
+ * 使用单独的调度线程，不占用Daemon所在的默认调度线程
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "outbox.relay.enabled", havingValue = "true")
+public class OutboxRelay {
+
+    /**
+     * 分布式锁的租约，持有期间由看门狗自动续约
+     */
+    private static final long LOCK_LEASE = 30_000L;
+
+    @Autowired
+    private CachingConnectionFactory connectionFactory;
+
+    @Autowired
+    private RabbitTemplate rabbitTemplate;
+
+    @Autowired
+    private OutboxMessageMapper mapper;
+
+    @Autowired
+    private FencedLock fencedLock;
+
+    /**
+     * 两轮读取之间的间隔
+     */
+    @Value("${outbox.relay.interval-millis:200}")
+    private long intervalMillis;
+
+    /**
+     * 每次读取的消息个数
+     */
+    @Value("${outbox.relay.batch-size:500}")
+    private int batchSize;
+
+    @Value("${outbox.relay.channels:2}")
+    private int channels;
+
+    @Value("${outbox.relay.max-in-flight:1000}")
+    private int maxInFlight;
+
+    /**
+     * 发送后超过该时间仍未确认的消息按nack处理，下一轮重新发送；窗口满时最多等待同样的时间
+     */
+    @Value("${outbox.relay.confirm-timeout-millis:30000}")
+    private long confirmTimeoutMillis;
+
+    /**
+     * 确认后删除消息，否则标记为已发送
+     */
+    @Value("${outbox.relay.delete-on-confirm:true}")
+    private boolean deleteOnConfirm;
+
+    /**
+     * 已发送等待确认的消息，下一轮读取时跳过
+     */
+    private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+
+    private final MessagePropertiesConverter propertiesConverter = new DefaultMessagePropertiesConverter();
+
+    private ConfirmWindowPublisher publisher;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() throws Exception {
+        publisher = new ConfirmWindowPublisher(connectionFactory.getRabbitConnectionFactory(), channels, maxInFlight,
+                new ConfirmBatcher.Callback() {
+                    @Override
+                    public void confirmed(List<String> ids) {
+                        List<Long> keys = ids.stream().map(Long::valueOf).collect(Collectors.toList());
+                        try {
+                            for (int from = 0; from < keys.size(); from += batchSize) {
+                                List<Long> batch = keys.subList(from, Math.min(from + batchSize, keys.size()));
+                                if (deleteOnConfirm) {
+                                    mapper.deleteByPrimaryKeys(batch);
+                                } else {
+                                    mapper.updateSentByPrimaryKeys(batch);
+                                }
+                            }
+                        } finally {
+                            //更新失败的消息会被重新发送
+                            inFlight.removeAll(keys);
+                        }
+                    }
+
+                    @Override
+                    public void nacked(List<String> ids) {
+                        log.warn("Outbox messages not confirmed, resend in next round, count: {}", ids.size());
+                        ids.forEach(id -> inFlight.remove(Long.valueOf(id)));
+                    }
+                });
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "outbox-relay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::relay, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        scheduler.shutdown();
+        if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
+            scheduler.shutdownNow();
+        }
+        publisher.close();
+    }
+
+    public void relay() {
+        try {
+            int expired = publisher.expire(confirmTimeoutMillis);
+            if (expired > 0) {
+                log.warn("Outbox messages confirm timeout, resend in next round, count: {}", expired);
+            }
+            fencedLock.lock("redis_lock_outbox_relay", LOCK_LEASE, fence -> {
+                relay(fence);
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("Outbox relay error", e);
+        }
+    }
+
+    /**
+     * 每轮从头按主键游标读取，事务提交顺序与主键顺序不一致时，晚提交的小主键消息在下一轮被读到
+     */
+    private void relay(FencedLock.Fence fence) throws Exception {
+        long afterId = 0;
+        int sent = 0;
+        List<OutboxMessage> page;
+        do {
+            page = mapper.selectPending(afterId, batchSize);
+            fence.validate();
+            for (OutboxMessage message : page) {
+                afterId = message.getId();
+                if (!inFlight.add(message.getId())) {
+                    continue;
+                }
+                boolean published = false;
+                try {
+                    fence.check();
+                    Message amqp = toMessage(message);
+                    AMQP.BasicProperties properties = propertiesConverter.fromMessageProperties(
+                            amqp.getMessageProperties(), StandardCharsets.UTF_8.name());
+                    published = publisher.publish(message.getId().toString(), message.getExchange(),
+                            message.getRoutingKey(), properties, amqp.getBody(), confirmTimeoutMillis);
+                } finally {
+                    if (!published) {
+                        inFlight.remove(message.getId());
+                    }
+                }
+                if (!published) {
+                    log.warn("Outbox relay window is full, resend in next round, in flight: {}", publisher.getInFlight());
+                    return;
+                }
+                sent++;
+            }
+        } while (page.size() >= batchSize);
+        if (sent > 0) {
+            log.info("Outbox relay sent: {}, in flight: {}", sent, publisher.getInFlight());
+        }
+    }
+
+    /**
+     * payload是TransferBean的json，由RabbitTemplate的MessageConverter转换，messageId为消息的msgId
+     */
+    private Message toMessage(OutboxMessage message) {
+        MessageProperties properties = new MessageProperties();
+        properties.setMessageId(message.getMsgId());
+        properties.setDeliveryMode(MessageDeliveryMode.PERSISTENT);
+        return rabbitTemplate.getMessageConverter().toMessage(
+                message.getPayload() == null ? "" : message.getPayload(), properties);
+    }
+}
@@ -0,0 +1,69 @@
+package top.arkstack.shine.mq.demo.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 缓存时间源
+ * <p>
+ * 由后台线程按固定间隔刷新时间，读取时只是一次volatile读，不再每次调用 System.currentTimeMillis()。
+ * 刷新时只前进不后退，系统时钟回退时保持原值，直到系统时钟追上
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public class CachedTimeSource implements TimeSource, AutoCloseable {
+
+    private final long tickNanos;
+
+    private final Thread ticker;
+
+    private volatile long now;
+
+    private volatile boolean running = true;
+
+    /**
+     * 默认每毫秒刷新一次
+     */
+    public CachedTimeSource() {
+        this(1L);
+    }
+
+    /**
+     * @param tickMillis 刷新间隔
+     */
+    public CachedTimeSource(long tickMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException(String.format("Tick millis can't be less than 1, tickMillis: %d", tickMillis));
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.now = System.currentTimeMillis();
+        this.ticker = new Thread(this::tick, "cached-time-source-ticker");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    private void tick() {
+        while (running) {
+            long current = System.currentTimeMillis();
+            if (current > now) {
+                now = current;
+            }
+            LockSupport.parkNanos(tickNanos);
+        }
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    /**
+     * 停止后台刷新线程
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(ticker);
+    }
+}
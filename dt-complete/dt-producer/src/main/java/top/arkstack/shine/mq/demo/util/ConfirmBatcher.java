@@ -0,0 +1,135 @@
+package top.arkstack.shine.mq.demo.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 确认结果的合并
+ * <p>
+ * broker的ack/nack逐条到达（或 multiple=true 一次确认多条），确认线程中只入队，不访问协调者；
+ * 后台线程一次取出已经到达的全部确认，合并成批交给 {@link Callback}，协调者的状态变更因此可以批量执行。
+ * 不额外等待，没有积压时每次确认单独成批
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Slf4j
+public class ConfirmBatcher implements AutoCloseable {
+
+    private final Callback callback;
+
+    private final BlockingQueue<Confirm> confirms = new LinkedBlockingQueue<>();
+
+    private final Thread flusher;
+
+    private volatile boolean closed;
+
+    /**
+     * @param name     后台线程名
+     * @param callback 批量确认回调
+     */
+    public ConfirmBatcher(String name, Callback callback) {
+        this.callback = callback;
+        this.flusher = new Thread(this::flush, name);
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public void ack(String id) {
+        add(true, Collections.singletonList(id));
+    }
+
+    /**
+     * 记录一次确认，不阻塞
+     *
+     * @param ack 是否被broker确认
+     * @param ids 本次确认的消息标识
+     */
+    public void add(boolean ack, List<String> ids) {
+        if (!ids.isEmpty()) {
+            confirms.add(new Confirm(ack, ids));
+        }
+    }
+
+    /**
+     * 合并确认结果并回调，一次取出队列中所有已经到达的确认
+     */
+    private void flush() {
+        List<Confirm> batch = new ArrayList<>();
+        while (!closed || !confirms.isEmpty()) {
+            try {
+                Confirm first = confirms.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                confirms.drainTo(batch);
+            } catch (InterruptedException e) {
+                closed = true;
+                confirms.drainTo(batch);
+            }
+            List<String> acked = new ArrayList<>();
+            List<String> nacked = new ArrayList<>();
+            batch.forEach(c -> (c.ack ? acked : nacked).addAll(c.ids));
+            batch.clear();
+            try {
+                if (!acked.isEmpty()) {
+                    callback.confirmed(acked);
+                }
+                if (!nacked.isEmpty()) {
+                    callback.nacked(nacked);
+                }
+            } catch (Exception e) {
+                log.error("Confirm callback error, acked: {}, nacked: {}", acked.size(), nacked.size(), e);
+            }
+        }
+    }
+
+    /**
+     * 回调完已经到达的确认后停止
+     */
+    @Override
+    public void close() {
+        closed = true;
+        flusher.interrupt();
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 批量确认回调，在后台线程中执行
+     */
+    public interface Callback {
+
+        /**
+         * broker已经确认的消息
+         */
+        void confirmed(List<String> ids) throws Exception;
+
+        /**
+         * broker拒绝或channel关闭前没有确认的消息，这些消息的状态不变，留给重试或补偿
+         */
+        void nacked(List<String> ids) throws Exception;
+    }
+
+    private static final class Confirm {
+
+        final boolean ack;
+
+        final List<String> ids;
+
+        Confirm(boolean ack, List<String> ids) {
+            this.ack = ack;
+            this.ids = ids;
+        }
+    }
+}
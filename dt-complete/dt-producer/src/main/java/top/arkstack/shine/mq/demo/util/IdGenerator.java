@@ -0,0 +1,34 @@
+package top.arkstack.shine.mq.demo.util;
+
+/**
+ * ID生成器
+ * <p>
+ * {@link SnowflakeIdGenerator} 本地生成，适合节点多的场景；
+ * {@link SegmentIdGenerator} 从数据库号段分配，适合节点少、对ID连续性有要求的场景
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public interface IdGenerator {
+
+    /**
+     * 获得下一个ID
+     */
+    long nextNormalId();
+
+    /**
+     * 批量获得count个ID
+     *
+     * @param count 需要的ID个数
+     */
+    default long[] nextNormalIds(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException(String.format("Id count can't be less than 0, count: %d", count));
+        }
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = nextNormalId();
+        }
+        return ids;
+    }
+}
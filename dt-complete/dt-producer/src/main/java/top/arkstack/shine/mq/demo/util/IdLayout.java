@@ -0,0 +1,110 @@
+package top.arkstack.shine.mq.demo.util;
+
+/**
+ * 分布式ID的位布局
+ * <p>
+ * 符号位(1) + 时间截(63 - 机器id位数 - 序列位数) + 机器id + 序列，
+ * 节点数少而单节点每毫秒需要超过4096个ID时，可以用机器id位换序列位。
+ * 时间截位数必须容纳从开始时间截到现在的毫秒数再加上 {@link #HEADROOM_MILLIS}，否则时间截会溢出到机器id和符号位
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public final class IdLayout {
+
+    /**
+     * 默认布局 41/10/12，系统开始时间截 (UTC 2018-07-20 00:00:00)
+     */
+    public static final IdLayout DEFAULT = new IdLayout(1532016000000L, 10, 12);
+
+    /**
+     * 时间截在当前时间之后至少还能使用的毫秒数，10年；41位从开始时间截起可以使用69年
+     */
+    public static final long HEADROOM_MILLIS = 10L * 365 * 24 * 3600 * 1000;
+
+    /**
+     * 系统开始时间截
+     */
+    private final long startTime;
+
+    /**
+     * 机器id所占的位数
+     */
+    private final int workerIdBits;
+
+    /**
+     * 序列在id中占的位数
+     */
+    private final int sequenceBits;
+
+    /**
+     * @param startTime    系统开始时间截
+     * @param workerIdBits 机器id所占的位数
+     * @param sequenceBits 序列在id中占的位数
+     */
+    public IdLayout(long startTime, int workerIdBits, int sequenceBits) {
+        if (startTime < 0) {
+            throw new IllegalArgumentException(String.format("Start time can't be less than 0, startTime: %d", startTime));
+        }
+        if (workerIdBits < 0 || sequenceBits < 1) {
+            throw new IllegalArgumentException(String.format("Worker id bits can't be less than 0 and sequence bits can't be less than 1, " +
+                    "workerIdBits: %d, sequenceBits: %d", workerIdBits, sequenceBits));
+        }
+        int timestampBits = 63 - workerIdBits - sequenceBits;
+        if (timestampBits < 1) {
+            throw new IllegalArgumentException(String.format("Worker id bits + sequence bits can't be greater than 62, " +
+                    "workerIdBits: %d, sequenceBits: %d", workerIdBits, sequenceBits));
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+        if (elapsed < 0) {
+            throw new IllegalArgumentException(String.format("Start time can't be in the future, startTime: %d", startTime));
+        }
+        long maxTimestamp = -1L ^ (-1L << timestampBits);
+        if (maxTimestamp - elapsed < HEADROOM_MILLIS) {
+            throw new IllegalArgumentException(String.format("Timestamp bits %d can't hold %dms elapsed since start time plus %dms headroom, " +
+                    "reduce worker id bits or sequence bits, workerIdBits: %d, sequenceBits: %d",
+                    timestampBits, elapsed, HEADROOM_MILLIS, workerIdBits, sequenceBits));
+        }
+        this.startTime = startTime;
+        this.workerIdBits = workerIdBits;
+        this.sequenceBits = sequenceBits;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public int getWorkerIdBits() {
+        return workerIdBits;
+    }
+
+    public int getSequenceBits() {
+        return sequenceBits;
+    }
+
+    /**
+     * 支持的最大机器id(十进制)，默认布局为1023
+     */
+    public long getMaxWorkerId() {
+        return -1L ^ (-1L << workerIdBits);
+    }
+
+    /**
+     * 生成序列的掩码，默认布局为4095
+     */
+    public long getSequenceMask() {
+        return -1L ^ (-1L << sequenceBits);
+    }
+
+    /**
+     * 时间截向左移位数，默认布局为22(10+12)
+     */
+    public int getTimestampMoveBits() {
+        return sequenceBits + workerIdBits;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d/%d", 63 - workerIdBits - sequenceBits, workerIdBits, sequenceBits);
+    }
+}
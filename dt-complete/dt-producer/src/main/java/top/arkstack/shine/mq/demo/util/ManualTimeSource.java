@@ -0,0 +1,40 @@
+package top.arkstack.shine.mq.demo.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 手动控制的时间源，时间只在调用 {@link #set(long)} 或 {@link #advance(long)} 时改变，
+ * 用于可重复地验证序列溢出、时钟回退等场景
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public class ManualTimeSource implements TimeSource {
+
+    private final AtomicLong now;
+
+    public ManualTimeSource(long now) {
+        this.now = new AtomicLong(now);
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now.get();
+    }
+
+    /**
+     * 设置当前时间，可以小于当前值来模拟时钟回退
+     */
+    public void set(long millis) {
+        now.set(millis);
+    }
+
+    /**
+     * 时间前进（为负数时回退）delta毫秒
+     *
+     * @return 调整后的时间
+     */
+    public long advance(long delta) {
+        return now.addAndGet(delta);
+    }
+}
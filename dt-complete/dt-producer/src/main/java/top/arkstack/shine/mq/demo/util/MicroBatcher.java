@@ -0,0 +1,175 @@
+package top.arkstack.shine.mq.demo.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 微批处理
+ * <p>
+ * 并发提交的请求由后台线程合并：收到第一个请求后最多等待 windowMillis，或凑满 maxBatchSize 个，
+ * 整批交给 handler 一次处理，每个调用方阻塞等待并拿到自己的结果。整批失败时所有调用方都收到同一个异常
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Slf4j
+public class MicroBatcher<T, R> implements AutoCloseable {
+
+    /**
+     * 队列满时每次等待的时长，之后检查是否已经关闭
+     */
+    private static final long OFFER_WAIT_MILLIS = 100L;
+
+    private final int maxBatchSize;
+
+    private final long windowNanos;
+
+    private final BatchHandler<T, R> handler;
+
+    private final BlockingQueue<Request<T, R>> queue;
+
+    private final Thread flusher;
+
+    private volatile boolean closed;
+
+    /**
+     * @param name         后台线程名
+     * @param maxBatchSize 每批最多的请求数
+     * @param windowMillis 合并窗口
+     * @param handler      批处理，返回的结果与请求一一对应
+     */
+    public MicroBatcher(String name, int maxBatchSize, long windowMillis, BatchHandler<T, R> handler) {
+        if (maxBatchSize < 1 || windowMillis < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Max batch size must be positive and window can't be negative, maxBatchSize: %d, windowMillis: %d",
+                    maxBatchSize, windowMillis));
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.handler = handler;
+        //有界队列，处理不过来时调用方阻塞
+        this.queue = new LinkedBlockingQueue<>(maxBatchSize * 16);
+        this.flusher = new Thread(this::run, name);
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * 提交一个请求并等待所在批次处理完成
+     * <p>
+     * 入队后再检查一次是否已经关闭：关闭时后台线程最后清空一次队列，在这之后入队的请求没有人处理，
+     * 此时能从队列中移除说明后台线程没有拿到它，直接失败，否则后台线程一定会完成它
+     *
+     * @param item 请求
+     * @return 该请求的结果
+     */
+    public R submit(T item) {
+        Request<T, R> request = new Request<>(item);
+        try {
+            //队列满时分段等待，关闭后不再阻塞
+            while (!queue.offer(request, OFFER_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    throw new IllegalStateException("Micro batcher is closed");
+                }
+            }
+            if (closed && queue.remove(request)) {
+                throw new IllegalStateException("Micro batcher is closed");
+            }
+            return request.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for batch", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Batch failed", e.getCause());
+        }
+    }
+
+    private void run() {
+        List<Request<T, R>> batch = new ArrayList<>(maxBatchSize);
+        while (!closed) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        queue.drainTo(batch, maxBatchSize - batch.size());
+                        break;
+                    }
+                    Request<T, R> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                closed = true;
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch = new ArrayList<>(maxBatchSize);
+            }
+        }
+        //关闭后剩余的请求直接失败
+        List<Request<T, R>> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        rest.forEach(r -> r.future.completeExceptionally(new IllegalStateException("Micro batcher is closed")));
+    }
+
+    private void flush(List<Request<T, R>> batch) {
+        try {
+            List<T> items = new ArrayList<>(batch.size());
+            batch.forEach(r -> items.add(r.item));
+            List<R> results = handler.handle(items);
+            if (results == null || results.size() != batch.size()) {
+                throw new IllegalStateException(String.format("Batch result size mismatch, expected: %d, actual: %s",
+                        batch.size(), results == null ? null : results.size()));
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).future.complete(results.get(i));
+            }
+        } catch (Throwable e) {
+            log.error("Micro batch failed, size: {}", batch.size(), e);
+            batch.forEach(r -> r.future.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * 停止后台线程，未处理的请求失败
+     */
+    @Override
+    public void close() {
+        closed = true;
+        flusher.interrupt();
+    }
+
+    /**
+     * 批处理
+     */
+    @FunctionalInterface
+    public interface BatchHandler<T, R> {
+
+        List<R> handle(List<T> items) throws Exception;
+    }
+
+    private static final class Request<T, R> {
+
+        final T item;
+
+        final CompletableFuture<R> future = new CompletableFuture<>();
+
+        Request(T item) {
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package top.arkstack.shine.mq.demo.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.transaction.support.TransactionTemplate;
+import top.arkstack.shine.mq.demo.dao.IdSegmentMapper;
+import top.arkstack.shine.mq.demo.dao.model.IdSegment;
+
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 号段模式的ID生成器（参考美团Leaf-segment）
+ * <p>
+ * 每次从数据库 id_segment 表占用一个号段 (max_id - step, max_id]，在内存中自增分配。
+ * 双buffer：当前号段消耗到一定比例时，后台异步加载下一个号段，当前号段用完直接切换，分配过程不等待数据库
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Slf4j
+public class SegmentIdGenerator implements IdGenerator {
+
+    /**
+     * 当前号段已经使用的比例超过该值时，预加载下一个号段
+     */
+    private static final double PRELOAD_RATIO = 0.1;
+
+    private final String bizTag;
+
+    private final IdSegmentMapper mapper;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final ExecutorService loader;
+
+    private volatile Segment current;
+
+    /**
+     * 正在加载或已经加载完成的下一个号段
+     */
+    private Future<Segment> next;
+
+    /**
+     * @param bizTag              业务标识，对应 id_segment.biz_tag
+     * @param mapper              号段表mapper
+     * @param transactionTemplate 占用号段（update + select）需要在同一个事务中
+     */
+    public SegmentIdGenerator(String bizTag, IdSegmentMapper mapper, TransactionTemplate transactionTemplate) {
+        this.bizTag = bizTag;
+        this.mapper = mapper;
+        this.transactionTemplate = transactionTemplate;
+        this.loader = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "segment-id-loader-" + bizTag);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.current = load();
+    }
+
+    @Override
+    public long nextNormalId() {
+        for (; ; ) {
+            Segment segment = current;
+            long id = segment.value.getAndIncrement();
+            if (id <= segment.max) {
+                if (id == segment.preloadAt) {
+                    preload();
+                }
+                return id;
+            }
+            switchSegment(segment);
+        }
+    }
+
+    /**
+     * 异步加载下一个号段
+     */
+    private synchronized void preload() {
+        if (next == null) {
+            next = loader.submit(this::load);
+        }
+    }
+
+    /**
+     * 当前号段用完，切换到下一个号段，只有一个线程会真正切换
+     */
+    private synchronized void switchSegment(Segment exhausted) {
+        if (current != exhausted) {
+            return;
+        }
+        preload();
+        try {
+            current = next.get();
+        } catch (Exception e) {
+            throw new IllegalStateException(String.format("Load id segment error, bizTag: %s", bizTag), e);
+        } finally {
+            next = null;
+        }
+    }
+
+    /**
+     * 从数据库占用一个号段
+     */
+    private Segment load() {
+        IdSegment idSegment = transactionTemplate.execute(status -> {
+            mapper.updateMaxIdByPrimaryKey(bizTag);
+            return mapper.selectByPrimaryKey(bizTag);
+        });
+        if (Objects.isNull(idSegment)) {
+            throw new IllegalStateException(String.format("Id segment not found, bizTag: %s", bizTag));
+        }
+        Segment segment = new Segment(idSegment.getMaxId() - idSegment.getStep() + 1, idSegment.getMaxId());
+        log.info("Id segment loaded, bizTag: {}, range: [{}, {}]", bizTag, segment.value.get(), segment.max);
+        return segment;
+    }
+
+    /**
+     * 停止后台加载线程
+     */
+    public void close() {
+        loader.shutdownNow();
+    }
+
+    /**
+     * 号段 [value, max]
+     */
+    private static final class Segment {
+
+        final AtomicLong value;
+
+        final long max;
+
+        /**
+         * 分配到这个id时触发预加载
+         */
+        final long preloadAt;
+
+        Segment(long start, long max) {
+            this.value = new AtomicLong(start);
+            this.max = max;
+            this.preloadAt = start + (long) ((max - start + 1) * PRELOAD_RATIO);
+        }
+    }
+}
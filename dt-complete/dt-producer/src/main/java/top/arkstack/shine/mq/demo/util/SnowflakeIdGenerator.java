@@ -1,63 +1,106 @@
 package top.arkstack.shine.mq.demo.util;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
 /**
  * 分布式ID
+ * <p>
+ * 时间戳与毫秒内序列打包在同一个原子状态字中，通过CAS推进，生成ID不需要加锁
  *
  * @author 7le
  * @version v1.0.0
  */
-public class SnowflakeIdGenerator {
+public class SnowflakeIdGenerator implements IdGenerator {
 
 
     /**
-     * 系统开始时间截 (UTC 2018-07-20 00:00:00)
+     * 系统开始时间截，默认 (UTC 2018-07-20 00:00:00)
      */
-    private static final long startTime = 1532016000000L;
+    private final long startTime;
 
     /**
-     * 机器id所占的位数
+     * 机器id所占的位数，默认10
      */
-    private static final long workerIdBits = 10L;
+    private final long workerIdBits;
 
     /**
-     * 支持的最大机器id(十进制)，结果是1023 (这个移位算法可以很快的计算出几位二进制数所能表示的最大十进制数)
-     * -1L 左移 10位 (worker id 所占位数) 即 10位二进制所能获得的最大十进制数 - 1023
+     * 支持的最大机器id(十进制)，默认1023
      */
-    private static final long maxWorkerId = -1L ^ (-1L << workerIdBits);
+    private final long maxWorkerId;
 
     /**
-     * 序列在id中占的位数
+     * 序列在id中占的位数，默认12
      */
-    private static final long sequenceBits = 12L;
+    private final long sequenceBits;
 
     /**
-     * 机器ID 左移位数 - 12 (即末 sequence 所占用的位数)
+     * 机器ID 左移位数 (即末 sequence 所占用的位数)
      */
-    private static final long workerIdMoveBits = sequenceBits;
+    private final long workerIdMoveBits;
 
     /**
-     * 时间截向 左移位数 - 22(10+12)
+     * 时间截向 左移位数，默认22(10+12)
      */
-    private static final long timestampMoveBits = sequenceBits + workerIdBits;
+    private final long timestampMoveBits;
 
     /**
-     * 生成序列的掩码(12位所对应的最大整数值)，这里为4095 (0b111111111111=0xfff=4095)
+     * 生成序列的掩码，默认4095 (0b111111111111=0xfff=4095)
      */
-    private static final long sequenceMask = -1L ^ (-1L << sequenceBits);
+    private final long sequenceMask;
     //=================================================Works's Parameter================================================
     /**
      * 工作机器ID(0~1023)
      */
-    private long workerId;
+    private volatile long workerId;
+
+    /**
+     * 序列通道，每个通道独占一段机器id位并维护自己的状态，通道之间没有共享状态
+     */
+    private volatile Lane[] lanes;
+
+    /**
+     * 通道所占的位数
+     */
+    private final int laneBits;
+
+    /**
+     * 通道掩码，线程按id映射到通道
+     */
+    private final int laneMask;
 
     /**
-     * 毫秒内序列(0~4095)
+     * 时间源
      */
-    private static long sequence = 0L;
+    private final TimeSource timeSource;
+
+    /**
+     * 时钟回退或序列溢出时，最多可以借用的未来毫秒数，0 即严格模式（时钟回退直接抛出异常）
+     */
+    private final long maxBorrowMillis;
+
+    /**
+     * 累计借用的毫秒数
+     */
+    private final LongAdder borrowedMillis = new LongAdder();
+
+    /**
+     * 累计等待时钟的毫秒数
+     */
+    private final LongAdder waitedMillis = new LongAdder();
+
     /**
-     * 上次生成ID的时间截
+     * workerId是否仍然可用（如租约分配的workerId租约是否有效），不可用时拒绝生成ID
      */
-    private static long lastTimestamp = -1L;
+    private volatile BooleanSupplier workerIdGuard = () -> true;
+
+    /**
+     * 需要重新计算状态字
+     */
+    private static final long RETRY = -1L;
 
     private static SnowflakeIdGenerator idWorker;
     //===============================================Constructors=======================================================
@@ -68,45 +111,273 @@ public class SnowflakeIdGenerator {
      * @param workerId     工作ID (0~1023)
      */
     public SnowflakeIdGenerator(long workerId) {
-        if (workerId > maxWorkerId || workerId < 0) {
-            throw new IllegalArgumentException(String.format("Worker Id can't be greater than %d or less than 0", maxWorkerId));
+        this(workerId, 0);
+    }
+
+    /**
+     * 构造函数，分片模式
+     * <p>
+     * 将10位机器id拆成 节点id + 通道id，低laneBits位作为通道，每个通道拥有独立的毫秒内序列，
+     * 单节点每毫秒可生成 4096 * 2^laneBits 个ID，代价是可用的节点id变为 0 ~ (1023 >> laneBits)
+     *
+     * @param workerId 节点ID (0 ~ 1023 >> laneBits)
+     * @param laneBits 通道所占的位数 (0~10)，0 即不分片
+     */
+    public SnowflakeIdGenerator(long workerId, int laneBits) {
+        this(workerId, laneBits, 0L);
+    }
+
+    /**
+     * 构造函数，容忍时钟回退模式
+     * <p>
+     * 序列溢出或时钟小幅回退时，在maxBorrowMillis窗口内借用未来的时间戳继续分配；
+     * 超出窗口需要等待时，挂起线程而不是空转
+     *
+     * @param workerId        节点ID (0 ~ 1023 >> laneBits)
+     * @param laneBits        通道所占的位数 (0~10)，0 即不分片
+     * @param maxBorrowMillis 最多可以借用的未来毫秒数，0 即严格模式
+     */
+    public SnowflakeIdGenerator(long workerId, int laneBits, long maxBorrowMillis) {
+        this(workerId, laneBits, maxBorrowMillis, SystemTimeSource.INSTANCE);
+    }
+
+    /**
+     * 构造函数，指定时间源
+     *
+     * @param workerId        节点ID (0 ~ 1023 >> laneBits)
+     * @param laneBits        通道所占的位数 (0~10)，0 即不分片
+     * @param maxBorrowMillis 最多可以借用的未来毫秒数，0 即严格模式
+     * @param timeSource      时间源，如 {@link CachedTimeSource}
+     */
+    public SnowflakeIdGenerator(long workerId, int laneBits, long maxBorrowMillis, TimeSource timeSource) {
+        this(IdLayout.DEFAULT, workerId, laneBits, maxBorrowMillis, timeSource);
+    }
+
+    /**
+     * 构造函数，指定位布局
+     *
+     * @param layout          位布局，如 41/8/14 用2位机器id换取每毫秒16384个序列
+     * @param workerId        节点ID (0 ~ layout.getMaxWorkerId() >> laneBits)
+     * @param laneBits        通道所占的位数 (0 ~ layout.getWorkerIdBits())，0 即不分片
+     * @param maxBorrowMillis 最多可以借用的未来毫秒数，0 即严格模式
+     * @param timeSource      时间源，如 {@link CachedTimeSource}
+     */
+    public SnowflakeIdGenerator(IdLayout layout, long workerId, int laneBits, long maxBorrowMillis, TimeSource timeSource) {
+        if (layout == null) {
+            throw new IllegalArgumentException("Id layout can't be null");
+        }
+        if (timeSource == null) {
+            throw new IllegalArgumentException("Time source can't be null");
+        }
+        if (maxBorrowMillis < 0) {
+            throw new IllegalArgumentException(String.format("Max borrow millis can't be less than 0, maxBorrowMillis: %d", maxBorrowMillis));
+        }
+        if (laneBits < 0) {
+            throw new IllegalArgumentException(String.format("Lane bits can't be less than 0, laneBits: %d", laneBits));
+        }
+        if (laneBits > layout.getWorkerIdBits()) {
+            throw new IllegalArgumentException(String.format("Lane bits can't be greater than %d", layout.getWorkerIdBits()));
+        }
+        long maxNodeId = maxWorkerId(layout, laneBits);
+        if (workerId > maxNodeId || workerId < 0) {
+            throw new IllegalArgumentException(String.format("Worker Id can't be greater than %d or less than 0", maxNodeId));
+        }
+        this.startTime = layout.getStartTime();
+        this.workerIdBits = layout.getWorkerIdBits();
+        this.maxWorkerId = layout.getMaxWorkerId();
+        this.sequenceBits = layout.getSequenceBits();
+        this.workerIdMoveBits = sequenceBits;
+        this.timestampMoveBits = layout.getTimestampMoveBits();
+        this.sequenceMask = layout.getSequenceMask();
+        this.workerId = workerId;
+        this.maxBorrowMillis = maxBorrowMillis;
+        this.timeSource = timeSource;
+        this.laneBits = laneBits;
+        this.laneMask = (1 << laneBits) - 1;
+        this.lanes = lanes(workerId);
+    }
+
+    private Lane[] lanes(long workerId) {
+        Lane[] lanes = new Lane[1 << laneBits];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(((workerId << laneBits) | i) << workerIdMoveBits);
+        }
+        return lanes;
+    }
+
+    /**
+     * 切换到新的workerId，如租约丢失后重新占用到不同的workerId
+     * <p>
+     * 新workerId之前的持有者可能借用过未来的时间戳，或者时钟比本机快，通道不能从0开始，
+     * 而是从 max(当前时间, 之前持有者记录的最大时间戳 + 可借用窗口) 开始分配，时钟没追上之前等待
+     *
+     * @param workerId      新的节点ID
+     * @param lastTimestamp 租约中记录的该workerId生成过的最大时间戳（毫秒），没有记录时为0
+     */
+    public synchronized void rebind(long workerId, long lastTimestamp) {
+        long maxNodeId = maxWorkerId >>> laneBits;
+        if (workerId > maxNodeId || workerId < 0) {
+            throw new IllegalArgumentException(String.format("Worker Id can't be greater than %d or less than 0", maxNodeId));
         }
+        long highWaterMark = Math.max(lastTimestamp + maxBorrowMillis, startTime);
+        //等到时钟超过之前持有者可能用过的时间戳，之后新通道分配的ID不会与之前的重复
+        blockTillNextMillis(highWaterMark);
+        Lane[] lanes = lanes(workerId);
+        for (Lane lane : lanes) {
+            lane.set((highWaterMark - startTime) << sequenceBits);
+        }
+        this.lanes = lanes;
         this.workerId = workerId;
     }
 
+    /**
+     * 当前workerId生成过的最大时间戳（毫秒），workerId交给其他节点之前记录到租约中
+     */
+    public long getLastTimestamp() {
+        long last = 0L;
+        for (Lane lane : lanes) {
+            last = Math.max(last, lane.get() >>> sequenceBits);
+        }
+        return last + startTime;
+    }
+
     // ==================================================Methods========================================================
 
     /**
      * 线程安全的获得下一个 ID 的方法
      */
-    public synchronized long nextId() {
+    public long nextId() {
         return reverse(nextNormalId());
     }
 
-    public synchronized long nextNormalId() {
-        long timestamp = currentTime();
-        //如果当前时间小于上一次ID生成的时间戳: 说明系统时钟回退过 - 这个时候应当抛出异常
-        if (timestamp < lastTimestamp) {
-            throw new RuntimeException(
-                    String.format("Clock moved backwards.  Refusing to generate id for %d milliseconds", lastTimestamp - timestamp));
+    /**
+     * 线程安全的获得下一个 ID 的方法（无锁，CAS失败则重试）
+     */
+    @Override
+    public long nextNormalId() {
+        Lane lane = lane();
+        for (; ; ) {
+            long current = lane.get();
+            long timestamp = currentTime() - startTime;
+            long next = nextState(current, timestamp);
+            if (next != RETRY && lane.compareAndSet(current, next)) {
+                recordBorrow(current, next, timestamp);
+                return compose(lane, next);
+            }
         }
-        //如果是同一时间生成的，则进行毫秒内序列
-        if (lastTimestamp == timestamp) {
-            sequence = (sequence + 1) & sequenceMask;
-            //毫秒内序列溢出 即 序列 > 4095
-            if (sequence == 0) {
-                //阻塞到下一个毫秒,获得新的时间戳
-                timestamp = blockTillNextMillis(lastTimestamp);
+    }
+
+    /**
+     * 一次预留count个连续的ID，用于批量生成（如一个事务中插入多条记录）
+     * <p>
+     * 每个毫秒内只需一次CAS和一次取时间，当前毫秒剩余序列不够时，剩余部分顺延到之后的毫秒
+     *
+     * @param count 需要的ID个数
+     */
+    @Override
+    public long[] nextNormalIds(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException(String.format("Id count can't be less than 0, count: %d", count));
+        }
+        long[] ids = new long[count];
+        Lane lane = lane();
+        int filled = 0;
+        while (filled < count) {
+            long current = lane.get();
+            long timestamp = currentTime() - startTime;
+            long first = nextState(current, timestamp);
+            if (first == RETRY) {
+                continue;
+            }
+            //当前毫秒内最多还能分配的个数
+            long available = sequenceMask - (first & sequenceMask) + 1;
+            long take = Math.min(available, count - filled);
+            long last = first + take - 1;
+            if (lane.compareAndSet(current, last)) {
+                recordBorrow(current, last, timestamp);
+                for (long s = first; s <= last; s++) {
+                    ids[filled++] = compose(lane, s);
+                }
             }
         }
+        return ids;
+    }
+
+    /**
+     * 根据上次的状态字和当前时间(相对startTime)计算下一个状态字
+     *
+     * @return 下一个状态字，需要重新取时间再计算时返回 {@link #RETRY}
+     */
+    private long nextState(long current, long timestamp) {
+        long lastTimestamp = current >>> sequenceBits;
         //时间戳改变，毫秒内序列重置
-        else {
-            sequence = 0L;
+        if (timestamp > lastTimestamp) {
+            return timestamp << sequenceBits;
+        }
+        //如果当前时间小于上一次ID生成的时间戳: 说明系统时钟回退过
+        //回退在可借用窗口内则沿用上次的时间戳继续分配，否则应当抛出异常
+        if (lastTimestamp - timestamp > maxBorrowMillis) {
+            throw new RuntimeException(
+                    String.format("Clock moved backwards.  Refusing to generate id for %d milliseconds", lastTimestamp - timestamp));
+        }
+        //如果是同一时间生成的(或正在借用的时间戳)，则进行毫秒内序列
+        if ((current & sequenceMask) != sequenceMask) {
+            return current + 1;
+        }
+        //毫秒内序列溢出 即 序列 > 4095
+        if (maxBorrowMillis == 0) {
+            //阻塞到下一个毫秒,获得新的时间戳
+            return (blockTillNextMillis(lastTimestamp + startTime) - startTime) << sequenceBits;
+        }
+        //下一毫秒仍在可借用窗口内，直接借用未来的时间戳
+        if (lastTimestamp + 1 - timestamp <= maxBorrowMillis) {
+            return (lastTimestamp + 1) << sequenceBits;
+        }
+        //超出窗口，让出CPU等到时钟追上来，而不是空转
+        long waitMillis = lastTimestamp + 1 - maxBorrowMillis - timestamp;
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(waitMillis));
+        waitedMillis.add(waitMillis);
+        return RETRY;
+    }
+
+    /**
+     * 新分配的时间戳超前于当前时钟，即借用了未来的时间戳
+     */
+    private void recordBorrow(long current, long next, long timestamp) {
+        long nextTimestamp = next >>> sequenceBits;
+        if (maxBorrowMillis > 0 && nextTimestamp > timestamp && nextTimestamp > current >>> sequenceBits) {
+            borrowedMillis.increment();
+        }
+    }
+
+    /**
+     * 批量获得位反转后的ID，参见 {@link #nextNormalIds(int)}
+     */
+    public long[] nextIds(int count) {
+        long[] ids = nextNormalIds(count);
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = reverse(ids[i]);
         }
-        //上次生成ID的时间截
-        lastTimestamp = timestamp;
-        return ((timestamp - startTime) << timestampMoveBits) | (workerId << workerIdMoveBits)
-                | sequence;
+        return ids;
+    }
+
+    /**
+     * 根据通道和状态字拼装ID
+     */
+    private long compose(Lane lane, long state) {
+        return ((state >>> sequenceBits) << timestampMoveBits) | lane.workerBits
+                | (state & sequenceMask);
+    }
+
+    /**
+     * 当前线程使用的通道，同一线程总是落在同一通道上
+     */
+    private Lane lane() {
+        if (!workerIdGuard.getAsBoolean()) {
+            throw new IllegalStateException(
+                    String.format("Worker id %d is no longer held.  Refusing to generate id", workerId));
+        }
+        return lanes[(int) Thread.currentThread().getId() & laneMask];
     }
 
     /**
@@ -125,29 +396,121 @@ public class SnowflakeIdGenerator {
 
     /**
      * 阻塞到下一个毫秒 即 直到获得新的时间戳
+     * <p>
+     * 与借用窗口用完时一样挂起线程等待，而不是空转取时间
      */
     private long blockTillNextMillis(long lastTimestamp) {
         long timestamp = currentTime();
         while (timestamp <= lastTimestamp) {
+            long waitMillis = lastTimestamp + 1 - timestamp;
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(waitMillis));
+            waitedMillis.add(waitMillis);
             timestamp = currentTime();
         }
         return timestamp;
     }
 
+    /**
+     * 设置workerId的可用性检查，如 {@link WorkerIdLease#isHeld()}
+     */
+    public void setWorkerIdGuard(BooleanSupplier workerIdGuard) {
+        this.workerIdGuard = workerIdGuard;
+    }
+
+    /**
+     * 累计借用的未来毫秒数
+     */
+    public long getBorrowedMillis() {
+        return borrowedMillis.sum();
+    }
+
+    /**
+     * 累计等待时钟追上的毫秒数
+     */
+    public long getWaitedMillis() {
+        return waitedMillis.sum();
+    }
+
     /**
      * 获得以毫秒为单位的当前时间
      */
     private long currentTime() {
-        return System.currentTimeMillis();
+        return timeSource.currentTimeMillis();
+    }
+
+    /**
+     * 默认布局分片模式下可用的最大节点id
+     *
+     * @param laneBits 通道所占的位数 (0~10)
+     */
+    public static long maxWorkerId(int laneBits) {
+        return maxWorkerId(IdLayout.DEFAULT, laneBits);
+    }
+
+    /**
+     * 分片模式下可用的最大节点id
+     *
+     * @param layout   位布局
+     * @param laneBits 通道所占的位数
+     */
+    public static long maxWorkerId(IdLayout layout, int laneBits) {
+        return layout.getMaxWorkerId() >>> laneBits;
     }
 
     synchronized public static void init(long workerId) {
+        init(workerId, 0);
+    }
+
+    /**
+     * 初始化，分片模式，参见 {@link #SnowflakeIdGenerator(long, int)}
+     */
+    synchronized public static void init(long workerId, int laneBits) {
+        init(workerId, laneBits, 0L);
+    }
+
+    /**
+     * 初始化，容忍时钟回退模式，参见 {@link #SnowflakeIdGenerator(long, int, long)}
+     */
+    synchronized public static void init(long workerId, int laneBits, long maxBorrowMillis) {
+        init(workerId, laneBits, maxBorrowMillis, SystemTimeSource.INSTANCE);
+    }
+
+    /**
+     * 初始化，指定时间源，参见 {@link #SnowflakeIdGenerator(long, int, long, TimeSource)}
+     */
+    synchronized public static void init(long workerId, int laneBits, long maxBorrowMillis, TimeSource timeSource) {
+        init(IdLayout.DEFAULT, workerId, laneBits, maxBorrowMillis, timeSource);
+    }
+
+    /**
+     * 初始化，指定位布局，参见 {@link #SnowflakeIdGenerator(IdLayout, long, int, long, TimeSource)}
+     */
+    synchronized public static void init(IdLayout layout, long workerId, int laneBits, long maxBorrowMillis, TimeSource timeSource) {
         if (idWorker == null) {
-            idWorker = new SnowflakeIdGenerator(workerId);
+            idWorker = new SnowflakeIdGenerator(layout, workerId, laneBits, maxBorrowMillis, timeSource);
         }
     }
 
     public static SnowflakeIdGenerator getInstance() {
         return idWorker;
     }
+
+    /**
+     * 序列通道，自身即为状态字：高位为上次生成ID的时间截(相对startTime)，低sequenceBits位为毫秒内序列
+     * <p>
+     * 子类字段排在状态字之后，用来填充缓存行，避免相邻通道产生伪共享
+     */
+    private static final class Lane extends AtomicLong {
+
+        /**
+         * 已经左移到位的 节点id + 通道id
+         */
+        final long workerBits;
+
+        long p1, p2, p3, p4, p5, p6, p7;
+
+        Lane(long workerBits) {
+            this.workerBits = workerBits;
+        }
+    }
 }
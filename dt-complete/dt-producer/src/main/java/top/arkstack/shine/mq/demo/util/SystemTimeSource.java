@@ -0,0 +1,20 @@
+package top.arkstack.shine.mq.demo.util;
+
+/**
+ * 系统时间源，每次都调用 System.currentTimeMillis()
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public final class SystemTimeSource implements TimeSource {
+
+    public static final SystemTimeSource INSTANCE = new SystemTimeSource();
+
+    private SystemTimeSource() {
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,15 @@
+package top.arkstack.shine.mq.demo.util;
+
+/**
+ * 时间源，SnowflakeIdGenerator 通过它获取当前时间
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public interface TimeSource {
+
+    /**
+     * 获得以毫秒为单位的当前时间
+     */
+    long currentTimeMillis();
+}
@@ -0,0 +1,291 @@
+package top.arkstack.shine.mq.demo.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 基于redis租约的workerId分配
+ * <p>
+ * 启动时原子地占用一个空闲的workerId，后台心跳续约，关闭时释放。
+ * 续约失败且租约过期后 {@link #isHeld()} 返回false，SnowflakeIdGenerator 会拒绝继续生成ID，
+ * 避免租约被其他节点占用后出现重复ID；之后续约成功则恢复，key已经不属于自己时重新占用一个workerId。
+ * 每次续约和释放时把该workerId生成过的最大时间戳记录在 key + "_last" 中，下一个持有者从它之后开始分配
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+@Slf4j
+public class WorkerIdLease {
+
+    /**
+     * 从0开始找到第一个没被占用的id，SET NX PX 占用，整个过程在redis中原子执行
+     */
+    private static final DefaultRedisScript<Long> CLAIM_SCRIPT = new DefaultRedisScript<>(
+            "for i = 0, tonumber(ARGV[3]) do " +
+                    "if redis.call('SET', KEYS[1] .. i, ARGV[1], 'NX', 'PX', ARGV[2]) then return i end " +
+                    "end " +
+                    "return -1", Long.class);
+
+    /**
+     * 只有仍是自己持有时才续约
+     */
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then " +
+                    "return redis.call('PEXPIRE', KEYS[1], ARGV[2]) " +
+                    "end " +
+                    "return 0", Long.class);
+
+    /**
+     * 只有仍是自己持有时才释放
+     */
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then " +
+                    "return redis.call('DEL', KEYS[1]) " +
+                    "end " +
+                    "return 0", Long.class);
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final String keyPrefix;
+
+    private final long leaseMillis;
+
+    /**
+     * 心跳间隔
+     */
+    private final long period;
+
+    /**
+     * 时钟漂移的安全余量，本地认为租约有效的截止时间比redis中key过期早这么多
+     */
+    private final long driftMillis;
+
+    /**
+     * 租约持有者标识 pid@host:uuid
+     */
+    private final String owner = ManagementFactory.getRuntimeMXBean().getName() + ":" + UUID.randomUUID();
+
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "worker-id-lease-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile long workerId = -1L;
+
+    private volatile long maxWorkerId;
+
+    /**
+     * 租约有效期截止时间
+     */
+    private volatile long validUntil;
+
+    private volatile boolean held;
+
+    /**
+     * 占用时记录的该workerId之前生成过的最大时间戳
+     */
+    private volatile long lastTimestamp;
+
+    /**
+     * 重新占用workerId时通知使用方
+     */
+    private volatile WorkerIdListener workerIdListener = (id, last) -> {
+    };
+
+    /**
+     * 当前生成过的最大时间戳，续约和释放时记录到redis
+     */
+    private volatile LongSupplier lastTimestampSupplier = () -> 0L;
+
+    /**
+     * @param redisTemplate redis
+     * @param keyPrefix     租约key前缀，完整key为 keyPrefix + workerId
+     * @param leaseMillis   租约时长，心跳间隔为其1/3
+     */
+    public WorkerIdLease(StringRedisTemplate redisTemplate, String keyPrefix, long leaseMillis) {
+        if (leaseMillis < 3) {
+            throw new IllegalArgumentException(String.format("Lease millis can't be less than 3, leaseMillis: %d", leaseMillis));
+        }
+        this.redisTemplate = redisTemplate;
+        this.keyPrefix = keyPrefix;
+        this.leaseMillis = leaseMillis;
+        this.period = leaseMillis / 3;
+        //按 1% 估计两端时钟的漂移，至少 2ms，参考 Redlock 的 drift factor
+        this.driftMillis = leaseMillis / 100 + 2;
+    }
+
+    /**
+     * 占用 0 ~ maxWorkerId 中一个空闲的workerId，并开始心跳续约
+     *
+     * @param maxWorkerId 可用的最大workerId
+     * @return 占用到的workerId
+     */
+    public synchronized long acquire(long maxWorkerId) {
+        if (held) {
+            return workerId;
+        }
+        long start = System.currentTimeMillis();
+        Long id = redisTemplate.execute(CLAIM_SCRIPT, Collections.singletonList(keyPrefix),
+                owner, String.valueOf(leaseMillis), String.valueOf(maxWorkerId));
+        if (id == null || id < 0) {
+            throw new IllegalStateException(String.format("No free worker id in 0 ~ %d", maxWorkerId));
+        }
+        this.workerId = id;
+        this.maxWorkerId = maxWorkerId;
+        this.lastTimestamp = readLastTimestamp(id);
+        this.validUntil = start + leaseMillis;
+        this.held = true;
+        heartbeat.scheduleAtFixedRate(this::renew, period, period, TimeUnit.MILLISECONDS);
+        log.info("Worker id lease acquired, workerId: {}, owner: {}", id, owner);
+        return id;
+    }
+
+    /**
+     * 续约，失败时在租约过期前的最后一次心跳标记为失效，保证失效不晚于redis中key过期
+     */
+    private void renew() {
+        long start = System.currentTimeMillis();
+        try {
+            Long renewed = redisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(keyPrefix + workerId),
+                    owner, String.valueOf(leaseMillis));
+            if (renewed != null && renewed == 1L) {
+                //key一直属于自己，租约是连续的，之前因为续约失败标记的失效可以恢复
+                validUntil = start + leaseMillis;
+                held = true;
+                //在这次续约到期之前都可能继续生成ID
+                recordLastTimestamp(workerId, Math.max(lastTimestampSupplier.getAsLong(), validUntil));
+                return;
+            }
+            //key已经不属于自己（过期后可能被其他节点占用），立即失效，重新占用一个workerId
+            validUntil = 0L;
+            held = false;
+            log.error("Worker id lease lost, workerId: {}", workerId);
+            reacquire(start);
+            return;
+        } catch (Exception e) {
+            log.error("Worker id lease renew error, workerId: {}", workerId, e);
+        }
+        if (System.currentTimeMillis() + period >= validUntil) {
+            held = false;
+        }
+    }
+
+    /**
+     * 重新占用一个空闲的workerId，可能与原来的不同，先通知使用方切换后再恢复可用
+     */
+    private void reacquire(long start) {
+        try {
+            Long id = redisTemplate.execute(CLAIM_SCRIPT, Collections.singletonList(keyPrefix),
+                    owner, String.valueOf(leaseMillis), String.valueOf(maxWorkerId));
+            if (id == null || id < 0) {
+                log.error("Worker id lease reacquire failed, no free worker id in 0 ~ {}", maxWorkerId);
+                return;
+            }
+            //即使占用到原来的workerId，key过期期间也可能被其他节点用过，同样从记录的时间戳之后开始
+            lastTimestamp = readLastTimestamp(id);
+            workerIdListener.rebind(id, lastTimestamp);
+            workerId = id;
+            validUntil = start + leaseMillis;
+            held = true;
+            log.info("Worker id lease reacquired, workerId: {}, owner: {}", id, owner);
+        } catch (Exception e) {
+            log.error("Worker id lease reacquire error", e);
+        }
+    }
+
+    /**
+     * 读取workerId之前的持有者记录的最大时间戳
+     */
+    private long readLastTimestamp(long id) {
+        String last = redisTemplate.opsForValue().get(keyPrefix + id + "_last");
+        return last == null ? 0L : Long.parseLong(last);
+    }
+
+    /**
+     * 记录workerId生成过的最大时间戳，只增不减由下一个持有者取 max(当前时间, 记录值) 保证
+     */
+    private void recordLastTimestamp(long id, long timestamp) {
+        try {
+            redisTemplate.opsForValue().set(keyPrefix + id + "_last", String.valueOf(timestamp));
+        } catch (Exception e) {
+            log.error("Worker id last timestamp record error, workerId: {}", id, e);
+        }
+    }
+
+    /**
+     * 设置workerId变更的通知，如 {@link SnowflakeIdGenerator#rebind(long, long)}
+     */
+    public void setWorkerIdListener(WorkerIdListener workerIdListener) {
+        this.workerIdListener = workerIdListener;
+    }
+
+    /**
+     * 设置当前生成过的最大时间戳，如 {@link SnowflakeIdGenerator#getLastTimestamp()}
+     */
+    public void setLastTimestampSupplier(LongSupplier lastTimestampSupplier) {
+        this.lastTimestampSupplier = lastTimestampSupplier;
+    }
+
+    /**
+     * 停止心跳并释放workerId
+     */
+    public synchronized void release() {
+        heartbeat.shutdownNow();
+        if (workerId < 0) {
+            return;
+        }
+        held = false;
+        //已经停止生成ID，记录实际生成过的最大时间戳，下一个持有者不必等到租约时长之后
+        recordLastTimestamp(workerId, lastTimestampSupplier.getAsLong());
+        try {
+            redisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(keyPrefix + workerId), owner);
+            log.info("Worker id lease released, workerId: {}", workerId);
+        } catch (Exception e) {
+            log.error("Worker id lease release error, workerId: {}", workerId, e);
+        }
+    }
+
+    /**
+     * 租约是否仍然有效
+     * <p>
+     * 心跳线程可能卡在一次没有超时的续约调用上，held 来不及被标记为失效，
+     * 因此同时检查截止时间，并减去时钟漂移的安全余量
+     */
+    public boolean isHeld() {
+        return held && System.currentTimeMillis() < validUntil - driftMillis;
+    }
+
+    public long getWorkerId() {
+        return workerId;
+    }
+
+    /**
+     * 占用时该workerId之前的持有者生成过的最大时间戳，没有记录时为0
+     */
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * workerId变更的通知
+     */
+    @FunctionalInterface
+    public interface WorkerIdListener {
+
+        /**
+         * @param workerId      新占用的workerId
+         * @param lastTimestamp 该workerId之前的持有者生成过的最大时间戳
+         */
+        void rebind(long workerId, long lastTimestamp);
+    }
+}
@@ -10,3 +10,45 @@ CREATE TABLE `route_config` (
   `api_name` varchar(255) DEFAULT NULL,
   PRIMARY KEY (`id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+DROP TABLE IF EXISTS `id_segment`;
+CREATE TABLE `id_segment` (
+  `biz_tag` varchar(128) NOT NULL,
+  `max_id` bigint(20) NOT NULL DEFAULT '1',
+  `step` int(11) NOT NULL,
+  `description` varchar(255) DEFAULT NULL,
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
+  PRIMARY KEY (`biz_tag`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+INSERT INTO `id_segment` (`biz_tag`, `max_id`, `step`, `description`) VALUES ('route_config', 1, 2000, 'route_config 回查id号段');
+
+DROP TABLE IF EXISTS `outbox_message`;
+CREATE TABLE `outbox_message` (
+  `id` bigint(20) NOT NULL AUTO_INCREMENT,
+  `msg_id` varchar(64) NOT NULL,
+  `biz_id` varchar(128) NOT NULL,
+  `exchange` varchar(255) NOT NULL,
+  `routing_key` varchar(255) NOT NULL,
+  `payload` text,
+  `status` tinyint(1) NOT NULL DEFAULT '0' COMMENT '0 待发送 1 已发送',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`id`),
+  KEY `idx_status_id` (`status`, `id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+DROP TABLE IF EXISTS `coordinator_archive`;
+CREATE TABLE `coordinator_archive` (
+  `id` bigint(20) NOT NULL AUTO_INCREMENT,
+  `type` varchar(16) NOT NULL COMMENT 'prepare 或 ready',
+  `msg_key` varchar(255) NOT NULL COMMENT '消息所在的redis hash',
+  `msg_id` varchar(128) NOT NULL COMMENT 'checkBackId 或 msgId',
+  `biz_id` varchar(128) DEFAULT NULL,
+  `write_time` bigint(20) NOT NULL COMMENT '写入协调者的时间',
+  `attempts` int(11) NOT NULL,
+  `reason` varchar(32) NOT NULL COMMENT 'max-age 或 max-attempts',
+  `payload` mediumtext,
+  `archive_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`id`),
+  KEY `idx_msg_id` (`msg_id`)
+) ENGINE=InnoDB ROW_FORMAT=COMPRESSED DEFAULT CHARSET=utf8;
@@ -0,0 +1,90 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DiskSpool 的批量消费与空间回收
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public class DiskSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 容量只计算未消费的记录，已消费的部分足够大时压缩文件，重启后从剩余的记录继续
+     */
+    @Test
+    public void advanceReclaimsConsumedBytes() throws Exception {
+        File file = new File(folder.newFolder("spool"), "coordinator.spool");
+        byte[] record = new byte[1024];
+        //能放下约 3 * COMPACT_MIN_BYTES 的记录
+        long maxBytes = 3 * DiskSpool.COMPACT_MIN_BYTES;
+        int count = (int) (maxBytes / (4 + record.length + 4));
+        DiskSpool spool = new DiskSpool(file, maxBytes);
+        for (int i = 0; i < count; i++) {
+            assertTrue(spool.append(record));
+        }
+        assertTrue(!spool.append(record));
+
+        //消费一半多，触发压缩
+        int consumed = count / 2 + 1;
+        assertEquals(consumed, spool.peek(consumed).size());
+        spool.advance();
+        assertEquals(count - consumed, spool.records());
+        assertTrue(String.format("file length: %d", file.length()), file.length() < maxBytes / 2 + 1024);
+        //回收后可以继续写入
+        assertTrue(spool.append(text("tail")));
+        spool.close();
+
+        spool = new DiskSpool(file, maxBytes);
+        assertEquals(count - consumed + 1, spool.records());
+        List<byte[]> rest = new ArrayList<>();
+        spool.forEach(rest::add);
+        assertEquals("tail", new String(rest.get(rest.size() - 1), StandardCharsets.UTF_8));
+        spool.close();
+    }
+
+    /**
+     * peek 按顺序读取一批，advance 之前重复 peek 读到同一批
+     */
+    @Test
+    public void peekReturnsBatchInOrder() throws Exception {
+        File file = new File(folder.newFolder("spool"), "coordinator.spool");
+        DiskSpool spool = new DiskSpool(file, 1024 * 1024);
+        for (String s : Arrays.asList("1", "2", "3", "4", "5")) {
+            spool.append(text(s));
+        }
+        assertEquals(Arrays.asList("1", "2", "3"), texts(spool.peek(3)));
+        assertEquals(Arrays.asList("1", "2", "3"), texts(spool.peek(3)));
+        spool.advance();
+        assertEquals(Arrays.asList("4", "5"), texts(spool.peek(3)));
+        spool.advance();
+        assertEquals(0, spool.records());
+        assertEquals(0, spool.bytes());
+        spool.close();
+    }
+
+    private static byte[] text(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> texts(List<byte[]> records) {
+        List<String> texts = new ArrayList<>(records.size());
+        records.forEach(r -> texts.add(new String(r, StandardCharsets.UTF_8)));
+        return texts;
+    }
+}
@@ -0,0 +1,121 @@
+package top.arkstack.shine.mq.demo.coordinator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import top.arkstack.shine.mq.bean.PrepareMessage;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * WalCoordinator 的恢复与压缩
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public class WalCoordinatorTest {
+
+    private static final long HOUR = 3_600_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 最后一条记录只写了一半（crc校验失败）时，它和之后的内容被忽略，之前的记录和恢复后的新写入都保留
+     */
+    @Test
+    public void replayIgnoresTornTail() throws Exception {
+        File dir = folder.newFolder("wal");
+        WalCoordinator wal = open(dir, 64 * 1024);
+        wal.setPrepare(prepare("1"));
+        wal.setPrepare(prepare("2"));
+        wal.setPrepare(prepare("3"));
+        wal.close();
+
+        File[] files = segments(dir);
+        assertEquals(1, files.length);
+        try (RandomAccessFile file = new RandomAccessFile(files[0], "rw")) {
+            long third = recordOffset(file, 2);
+            file.seek(third);
+            int length = file.readInt();
+            //保留长度，把后半条记录清零，模拟宕机时只落盘了一部分
+            file.seek(third + 4 + length / 2);
+            file.write(new byte[length / 2 + 4]);
+        }
+
+        wal = open(dir, 64 * 1024);
+        assertEquals(new HashSet<>(Arrays.asList("1", "2")), prepareIds(wal));
+        wal.setPrepare(prepare("4"));
+        wal.close();
+
+        wal = open(dir, 64 * 1024);
+        assertEquals(new HashSet<>(Arrays.asList("1", "2", "4")), prepareIds(wal));
+        wal.close();
+    }
+
+    /**
+     * 压缩后只剩下当前状态的日志段，重启后状态不变
+     */
+    @Test
+    public void compactKeepsOnlyLiveState() throws Exception {
+        File dir = folder.newFolder("wal");
+        WalCoordinator wal = open(dir, 1024);
+        for (int i = 0; i < 30; i++) {
+            wal.setPrepare(prepare(String.valueOf(i)));
+        }
+        for (int i = 3; i < 30; i++) {
+            wal.delPrepare(String.valueOf(i));
+        }
+        int before = segments(dir).length;
+        assertTrue(before > 3);
+
+        wal.compact();
+        int after = segments(dir).length;
+        assertTrue(String.format("segments before: %d, after: %d", before, after), after <= 2);
+        assertEquals(new HashSet<>(Arrays.asList("0", "1", "2")), prepareIds(wal));
+        wal.close();
+
+        wal = open(dir, 1024);
+        assertEquals(new HashSet<>(Arrays.asList("0", "1", "2")), prepareIds(wal));
+        wal.close();
+    }
+
+    private static WalCoordinator open(File dir, int segmentBytes) throws Exception {
+        //不委托投递，超时时长为0，所有消息都立即可见
+        return new WalCoordinator(null, dir, segmentBytes, 0L, 1L, 1000L, HOUR);
+    }
+
+    private static PrepareMessage prepare(String checkBackId) {
+        return new PrepareMessage(checkBackId, "route_config", "route_config", "route_config_key");
+    }
+
+    private static Set<String> prepareIds(WalCoordinator wal) throws Exception {
+        return wal.getPrepare().stream().map(PrepareMessage::getCheckBackId).collect(Collectors.toSet());
+    }
+
+    private static File[] segments(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".wal"));
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * 第index条记录的起始位置，记录格式：[int 长度][内容][int crc32]
+     */
+    private static long recordOffset(RandomAccessFile file, int index) throws Exception {
+        long offset = 0;
+        for (int i = 0; i < index; i++) {
+            file.seek(offset);
+            offset += 4 + file.readInt() + 4;
+        }
+        return offset;
+    }
+}
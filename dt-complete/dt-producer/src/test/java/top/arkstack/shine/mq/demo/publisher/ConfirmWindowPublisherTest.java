@@ -0,0 +1,223 @@
+package top.arkstack.shine.mq.demo.publisher;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import top.arkstack.shine.mq.demo.util.ConfirmBatcher;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ConfirmWindowPublisher 的确认窗口：multiple确认、nack、窗口上限、channel关闭和确认超时，broker由内存中的channel模拟
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public class ConfirmWindowPublisherTest {
+
+    private static final byte[] BODY = new byte[0];
+
+    private final FakeChannel channel = new FakeChannel();
+
+    private final BlockingQueue<String> acked = new LinkedBlockingQueue<>();
+
+    private final BlockingQueue<String> nacked = new LinkedBlockingQueue<>();
+
+    private ConfirmWindowPublisher publisher;
+
+    @Before
+    public void setUp() throws Exception {
+        publisher = new ConfirmWindowPublisher(channel.factory(), 1, 3, new ConfirmBatcher.Callback() {
+            @Override
+            public void confirmed(List<String> ids) {
+                acked.addAll(ids);
+            }
+
+            @Override
+            public void nacked(List<String> ids) {
+                nacked.addAll(ids);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        publisher.close();
+    }
+
+    /**
+     * multiple=true 确认序号及之前的全部消息，之后的消息仍在窗口中
+     */
+    @Test
+    public void multipleAckConfirmsUpToDeliveryTag() throws Exception {
+        publish("a", "b", "c");
+        channel.listener.handleAck(2, true);
+        assertEquals(Arrays.asList("a", "b"), take(acked, 2));
+        assertEquals(1, publisher.getInFlight());
+        channel.listener.handleAck(3, false);
+        assertEquals(Collections.singletonList("c"), take(acked, 1));
+        assertEquals(0, publisher.getInFlight());
+    }
+
+    /**
+     * nack的消息交给nacked回调，重复的确认被忽略
+     */
+    @Test
+    public void nackAndDuplicateConfirms() throws Exception {
+        publish("a", "b");
+        channel.listener.handleNack(1, false);
+        assertEquals(Collections.singletonList("a"), take(nacked, 1));
+        channel.listener.handleAck(2, true);
+        channel.listener.handleAck(2, true);
+        channel.listener.handleNack(1, false);
+        assertEquals(Collections.singletonList("b"), take(acked, 1));
+        assertTrue(acked.poll(200, TimeUnit.MILLISECONDS) == null);
+        assertTrue(nacked.isEmpty());
+    }
+
+    /**
+     * 窗口满后不再发送，确认归还窗口后继续发送
+     */
+    @Test
+    public void windowLimitsInFlight() throws Exception {
+        publish("a", "b", "c");
+        assertFalse(publisher.publish("d", "ex", "rk", new AMQP.BasicProperties(), BODY, 50));
+        assertEquals(3, channel.published);
+        channel.listener.handleAck(1, false);
+        assertTrue(publisher.publish("d", "ex", "rk", new AMQP.BasicProperties(), BODY, 1000));
+        assertEquals(4, channel.published);
+    }
+
+    /**
+     * channel异常关闭后未确认的消息全部nack，之后重建channel继续发送
+     */
+    @Test
+    public void shutdownNacksOutstanding() throws Exception {
+        publish("a", "b");
+        channel.shutdown();
+        assertEquals(Arrays.asList("a", "b"), take(nacked, 2));
+        assertEquals(0, publisher.getInFlight());
+        publish("c");
+        assertEquals(2, channel.opened);
+    }
+
+    /**
+     * 超过确认时限的消息按nack处理，之后到达的确认被忽略
+     */
+    @Test
+    public void expireNacksTimedOut() throws Exception {
+        publish("a");
+        Thread.sleep(20);
+        publish("b");
+        assertEquals(1, publisher.expire(10));
+        assertEquals(Collections.singletonList("a"), take(nacked, 1));
+        channel.listener.handleAck(2, true);
+        assertEquals(Collections.singletonList("b"), take(acked, 1));
+        assertTrue(acked.poll(200, TimeUnit.MILLISECONDS) == null);
+    }
+
+    private void publish(String... ids) throws Exception {
+        for (String id : ids) {
+            assertTrue(publisher.publish(id, "ex", "rk", new AMQP.BasicProperties(), BODY, 1000));
+        }
+    }
+
+    private static List<String> take(BlockingQueue<String> queue, int count) throws InterruptedException {
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String id = queue.poll(5, TimeUnit.SECONDS);
+            if (id == null) {
+                break;
+            }
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    /**
+     * 内存中的channel，记录确认监听，发送时递增序号
+     */
+    private static class FakeChannel {
+
+        volatile ConfirmListener listener;
+
+        volatile ShutdownListener shutdownListener;
+
+        volatile boolean open;
+
+        volatile long nextSeqNo;
+
+        volatile int published;
+
+        volatile int opened;
+
+        ConnectionFactory factory() {
+            Connection connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class[]{Connection.class}, (proxy, method, args) -> {
+                        if ("createChannel".equals(method.getName())) {
+                            return open();
+                        }
+                        return null;
+                    });
+            return new ConnectionFactory() {
+                @Override
+                public Connection newConnection(String connectionName) {
+                    return connection;
+                }
+            };
+        }
+
+        void shutdown() {
+            open = false;
+            shutdownListener.shutdownCompleted(new ShutdownSignalException(false, false, null, null));
+        }
+
+        private Channel open() {
+            open = true;
+            nextSeqNo = 1;
+            opened++;
+            return (Channel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Channel.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "addConfirmListener":
+                                listener = (ConfirmListener) args[0];
+                                return null;
+                            case "addShutdownListener":
+                                shutdownListener = (ShutdownListener) args[0];
+                                return null;
+                            case "getNextPublishSeqNo":
+                                return nextSeqNo;
+                            case "basicPublish":
+                                nextSeqNo++;
+                                published++;
+                                return null;
+                            case "isOpen":
+                                return open;
+                            case "close":
+                                open = false;
+                                return null;
+                            default:
+                                return null;
+                        }
+                    });
+        }
+    }
+}
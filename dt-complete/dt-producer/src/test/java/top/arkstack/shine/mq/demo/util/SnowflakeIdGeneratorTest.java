@@ -0,0 +1,150 @@
+package top.arkstack.shine.mq.demo.util;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SnowflakeIdGenerator 在序列溢出、时钟回退下的行为，时间由 ManualTimeSource 控制
+ *
+ * @author 7le
+ * @version 1.0.0
+ */
+public class SnowflakeIdGeneratorTest {
+
+    private static final IdLayout LAYOUT = IdLayout.DEFAULT;
+
+    private static final long NOW = LAYOUT.getStartTime() + 1_000_000L;
+
+    private static final int SEQUENCES = (int) LAYOUT.getSequenceMask() + 1;
+
+    /**
+     * 一毫秒的序列用完后借用下一毫秒，ID保持唯一且递增
+     */
+    @Test
+    public void sequenceOverflowBorrowsNextMillis() {
+        ManualTimeSource time = new ManualTimeSource(NOW);
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(LAYOUT, 1, 0, 5, time);
+        long last = -1L;
+        Set<Long> ids = new HashSet<>();
+        for (int i = 0; i < SEQUENCES; i++) {
+            long id = generator.nextNormalId();
+            assertEquals(NOW, timestamp(id));
+            assertTrue(id > last);
+            ids.add(id);
+            last = id;
+        }
+        long borrowed = generator.nextNormalId();
+        assertEquals(NOW + 1, timestamp(borrowed));
+        assertTrue(borrowed > last);
+        assertTrue(ids.add(borrowed));
+        assertEquals(1L, generator.getBorrowedMillis());
+        //时钟追上借用的毫秒后继续在同一毫秒内分配，不再计为借用
+        time.advance(1);
+        assertTrue(generator.nextNormalId() > borrowed);
+        assertEquals(1L, generator.getBorrowedMillis());
+    }
+
+    /**
+     * 批量预留跨越毫秒时与逐个生成一致
+     */
+    @Test
+    public void batchSpansOverflowedMillis() {
+        ManualTimeSource time = new ManualTimeSource(NOW);
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(LAYOUT, 1, 0, 5, time);
+        long[] ids = generator.nextNormalIds(SEQUENCES + 10);
+        assertEquals(NOW, timestamp(ids[SEQUENCES - 1]));
+        assertEquals(NOW + 1, timestamp(ids[SEQUENCES]));
+        for (int i = 1; i < ids.length; i++) {
+            assertTrue(ids[i] > ids[i - 1]);
+        }
+    }
+
+    /**
+     * 时钟回退在可借用窗口内时沿用上次的时间戳，ID不重复也不倒退
+     */
+    @Test
+    public void rollbackWithinBorrowBudget() {
+        ManualTimeSource time = new ManualTimeSource(NOW);
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(LAYOUT, 1, 0, 10, time);
+        long before = generator.nextNormalId();
+        time.advance(-10);
+        long after = generator.nextNormalId();
+        assertEquals(NOW, timestamp(after));
+        assertTrue(after > before);
+    }
+
+    /**
+     * 时钟回退超出可借用窗口时拒绝生成
+     */
+    @Test(expected = RuntimeException.class)
+    public void rollbackBeyondBorrowBudget() {
+        ManualTimeSource time = new ManualTimeSource(NOW);
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(LAYOUT, 1, 0, 10, time);
+        generator.nextNormalId();
+        time.advance(-11);
+        generator.nextNormalId();
+    }
+
+    /**
+     * 严格模式下回退1毫秒即拒绝生成
+     */
+    @Test(expected = RuntimeException.class)
+    public void strictModeRejectsRollback() {
+        ManualTimeSource time = new ManualTimeSource(NOW);
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(LAYOUT, 1, 0, 0, time);
+        generator.nextNormalId();
+        time.advance(-1);
+        generator.nextNormalId();
+    }
+
+    /**
+     * 严格模式下序列溢出不借用，等到时钟进入下一毫秒
+     */
+    @Test(timeout = 10_000L)
+    public void strictModeWaitsOnOverflow() throws Exception {
+        ManualTimeSource time = new ManualTimeSource(NOW);
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(LAYOUT, 1, 0, 0, time);
+        for (int i = 0; i < SEQUENCES; i++) {
+            generator.nextNormalId();
+        }
+        Thread clock = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            time.advance(1);
+        });
+        clock.start();
+        long id = generator.nextNormalId();
+        clock.join();
+        assertEquals(NOW + 1, timestamp(id));
+        assertEquals(0L, generator.getBorrowedMillis());
+        assertTrue(generator.getWaitedMillis() > 0);
+    }
+
+    /**
+     * 切换workerId时从记录的最大时间戳之后开始分配
+     */
+    @Test
+    public void rebindStartsAfterRecordedTimestamp() {
+        ManualTimeSource time = new ManualTimeSource(NOW);
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(LAYOUT, 1, 0, 5, time);
+        generator.nextNormalId();
+        //之前的持有者借用到了 NOW - 6 + 5，时钟已经超过，不需要等待
+        generator.rebind(2, NOW - 6);
+        long id = generator.nextNormalId();
+        assertEquals(NOW, timestamp(id));
+        assertEquals(2L, (id >>> LAYOUT.getSequenceBits()) & LAYOUT.getMaxWorkerId());
+        assertEquals(NOW, generator.getLastTimestamp());
+    }
+
+    private static long timestamp(long id) {
+        return (id >>> LAYOUT.getTimestampMoveBits()) + LAYOUT.getStartTime();
+    }
+}